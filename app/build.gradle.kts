@@ -74,6 +74,7 @@ android {
 }
 
 dependencies {
+    implementation(project(":engine"))
     implementation(libs.lz4.java)
     implementation(libs.json)
     implementation(libs.shizuku.api)
@@ -36,11 +36,20 @@ import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 import androidx.core.widget.NestedScrollView;
 
+import com.asfu222.bajpdl.config.AppCache;
+import com.asfu222.bajpdl.config.AppConfig;
+import com.asfu222.bajpdl.core.DownloadListener;
 import com.asfu222.bajpdl.core.GameFileManager;
+import com.asfu222.bajpdl.core.ProgressSnapshot;
+import com.asfu222.bajpdl.metrics.Metrics;
+import com.asfu222.bajpdl.metrics.MetricsRegistry;
 import com.asfu222.bajpdl.shizuku.IUserService;
 import com.asfu222.bajpdl.shizuku.ShizukuService;
 import com.asfu222.bajpdl.util.ApkParser;
 import com.asfu222.bajpdl.util.EscalatedFS;
+import com.asfu222.bajpdl.util.EscalatedFileSystem;
+import com.asfu222.bajpdl.util.FileUtils;
+import com.asfu222.bajpdl.util.GameFS;
 
 import java.io.File;
 import java.io.IOException;
@@ -58,13 +67,15 @@ import java.util.function.Function;
 
 import rikka.shizuku.Shizuku;
 
-public class MainActivity extends AppCompatActivity {
+public class MainActivity extends AppCompatActivity implements DownloadListener {
     private static final int REQUEST_CODE = 1;
     private EditText serverUrlsInput;
     private Button startDownloadButton;
     private Button createShortcutButton;
+    private Button verifyRepairButton;
     private ProgressBar progressBar;
     private TextView progressText;
+    private TextView statsText;
     private TextView consoleOutput;
     private GameFileManager gameFileManager;
     private NestedScrollView consoleScrollView;
@@ -125,7 +136,7 @@ public class MainActivity extends AppCompatActivity {
         return new Shizuku.UserServiceArgs(new ComponentName(this, ShizukuService.class))
                 .daemon(false)
                 .processNameSuffix("user_service")
-                .version(1);
+                .version(4);
     }
 
     private void bindShizukuUserService() {
@@ -150,19 +161,31 @@ public class MainActivity extends AppCompatActivity {
         Switch downloadCustomOnlySwitch = findViewById(R.id.downloadCustomOnlySwitch);
         Switch openBA = findViewById(R.id.openBASwitch);
         Switch useMITMSwitch = findViewById(R.id.useMITMSwitch);
+        Switch backgroundModeSwitch = findViewById(R.id.backgroundModeSwitch);
+        Switch recordMetricsSwitch = findViewById(R.id.recordMetricsSwitch);
         startDownloadButton = findViewById(R.id.startDownloadButton);
         installAPKButton = findViewById(R.id.installAPKButton);
         createShortcutButton = findViewById(R.id.createShortcutButton);
+        verifyRepairButton = findViewById(R.id.verifyRepairButton);
         progressBar = findViewById(R.id.progressBar);
         progressText = findViewById(R.id.progressText);
+        statsText = findViewById(R.id.statsText);
         consoleScrollView = findViewById(R.id.consoleScrollView);
         consoleOutput = findViewById(R.id.consoleOutput);
-        gameFileManager = new GameFileManager(this);
+        GameFS.setFileSystem(new EscalatedFileSystem());
+        FileUtils.setGameRoot(Environment.getExternalStorageDirectory().toPath().resolve("Android/data/com.YostarJP.BlueArchive/files/"));
+        gameFileManager = new GameFileManager(
+                new AppConfig(getExternalFilesDir("bajpdl_cfg").toPath(), this::logErrorToConsole),
+                new AppCache(getExternalFilesDir("bajpdl_cache").toPath()),
+                getExternalMediaDirs()[0].toPath(),
+                getExternalFilesDir("bajpdl_cache").toPath(),
+                this);
         List<String> defaultServerUrls = gameFileManager.getAppConfig().getServerUrls();
         serverUrlsInput.setText(String.join(",", defaultServerUrls));
 
         startDownloadButton.setOnClickListener(v -> startDownloads());
         createShortcutButton.setOnClickListener(v -> onCreateShortcutButtonPressed());
+        verifyRepairButton.setOnClickListener(v -> verifyAndRepair());
 
         redownloadSwitch.setChecked(gameFileManager.getAppConfig().shouldAlwaysRedownload());
         redownloadSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
@@ -189,6 +212,21 @@ public class MainActivity extends AppCompatActivity {
             setupEscalatedPermissions();
             updateDownloadAPKButtonText();
         }));
+        backgroundModeSwitch.setChecked(gameFileManager.getAppConfig().getThroughputMode() == AppConfig.ThroughputMode.BACKGROUND);
+        backgroundModeSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            gameFileManager.getAppConfig().setThroughputMode(isChecked ? AppConfig.ThroughputMode.BACKGROUND : AppConfig.ThroughputMode.MAX_THROUGHPUT);
+            gameFileManager.getAppConfig().saveConfig();
+            gameFileManager.applyThroughputMode();
+        });
+        recordMetricsSwitch.setChecked(gameFileManager.getAppConfig().shouldRecordMetrics());
+        recordMetricsSwitch.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            gameFileManager.getAppConfig().setRecordMetrics(isChecked);
+            gameFileManager.getAppConfig().saveConfig();
+            if (!isChecked) {
+                statsText.setVisibility(View.GONE);
+            }
+        });
+
         if (EscalatedFS.canReadWriteAndroidData()) {
             useMITMSwitch.setEnabled(false);
             updateConsole("检测到存储权限，MITM方案已禁用（无需使用）");
@@ -638,44 +676,102 @@ public class MainActivity extends AppCompatActivity {
 
     private void startDownloads() {
         try {
-            if (!EscalatedFS.canReadWriteAndroidData()) {
-                if (!EscalatedFS.isReady()) {
-                    updateConsole("错误：请先给与本软件Root或Shizuku或MITM权限。");
-                    return;
-                }
-                try {
-                    if (!EscalatedFS.exists(Environment.getExternalStorageDirectory().toPath().resolve("Android/data/com.YostarJP.BlueArchive/files/"))) {
-                        updateConsole("错误：请先打开蔚蓝档案并等待加载完成");
-                        return;
-                    }
-                } catch (IOException e) {
-                    logErrorToConsole("检测蔚蓝档案安装状态时报错", e);
+            if (!prepareRun()) {
+                return;
+            }
+            if (isAuto) {
+                gameFileManager.startDownloads();
+                return;
+            }
+            // Show what the update downloads first; the confirmed plan runs as it is, without fetching the catalogs again
+            gameFileManager.planUpdate().thenAccept(plan -> runOnUiThread(() -> {
+                if (plan == null) {
+                    // The reason is already in the console
+                    hideProgress();
                     return;
                 }
-            }
-            progressBar.setVisibility(View.VISIBLE);
-            progressText.setVisibility(View.VISIBLE);
-            progressBar.setProgress(0);
-            progressText.setText("进度: 0%");
-            consoleOutput.setText("");
-
-            String serverUrlsText = serverUrlsInput.getText().toString();
-            List<String> serverUrls = Arrays.asList(serverUrlsText.split(","));
-            gameFileManager.getAppConfig().setServerUrls(serverUrls);
-            int batchSize = Math.max(Integer.parseInt(batchSizeInput.getText().toString()), 1);
-            gameFileManager.getAppConfig().setConcurrentDownloads(batchSize);
-            gameFileManager.getAppConfig().saveConfig();
+                new AlertDialog.Builder(this)
+                        .setTitle("更新资源")
+                        .setMessage(plan.format())
+                        .setPositiveButton("开始下载", (dialog, which) -> {
+                            if (gameFileManager.getAppConfig().shouldOpenBA()) {
+                                gameFileManager.getOnDownloadComplete().addLast(this::openBlueArchive);
+                            }
+                            gameFileManager.execute(plan);
+                        })
+                        .setNegativeButton("取消", (dialog, which) -> dialog.cancel())
+                        .setOnCancelListener(dialog -> {
+                            hideProgress();
+                            updateConsole("已取消更新");
+                        })
+                        .create().show();
+            })).exceptionally(ex -> {
+                logErrorToConsole("计算更新计划时报错", ex);
+                runOnUiThread(this::hideProgress);
+                return null;
+            });
+        } catch (Exception e) {
+            logErrorToConsole("开始下载时报错", e);
+        }
+    }
 
-            if (!isAuto && gameFileManager.getAppConfig().shouldOpenBA()) {
-                gameFileManager.getOnDownloadComplete().addLast(this::openBlueArchive);
-            }
+    /**
+     * Hides the progress views {@link #prepareRun()} showed, for a run that ends before it starts.
+     */
+    private void hideProgress() {
+        progressBar.setVisibility(View.GONE);
+        progressText.setVisibility(View.GONE);
+    }
 
-            gameFileManager.startDownloads();
+    private void verifyAndRepair() {
+        try {
+            if (!prepareRun()) {
+                return;
+            }
+            gameFileManager.verifyAndRepair(true);
         } catch (Exception e) {
-            logErrorToConsole("开始下载时报错", e);
+            logErrorToConsole("校验游戏文件时报错", e);
         }
     }
 
+    /**
+     * Checks that the game directory is reachable, resets the progress views and saves the settings.
+     * Starts a new {@link EscalatedFS} session, since files may have changed since the last run.
+     *
+     * @return false if the run cannot start; the reason is already in the console
+     */
+    private boolean prepareRun() {
+        EscalatedFS.beginSession();
+        if (!EscalatedFS.canReadWriteAndroidData()) {
+            if (!EscalatedFS.isReady()) {
+                updateConsole("错误：请先给与本软件Root或Shizuku或MITM权限。");
+                return false;
+            }
+            try {
+                if (!EscalatedFS.exists(Environment.getExternalStorageDirectory().toPath().resolve("Android/data/com.YostarJP.BlueArchive/files/"))) {
+                    updateConsole("错误：请先打开蔚蓝档案并等待加载完成");
+                    return false;
+                }
+            } catch (IOException e) {
+                logErrorToConsole("检测蔚蓝档案安装状态时报错", e);
+                return false;
+            }
+        }
+        progressBar.setVisibility(View.VISIBLE);
+        progressText.setVisibility(View.VISIBLE);
+        progressBar.setProgress(0);
+        progressText.setText("进度: 0%");
+        consoleOutput.setText("");
+
+        String serverUrlsText = serverUrlsInput.getText().toString();
+        List<String> serverUrls = Arrays.asList(serverUrlsText.split(","));
+        gameFileManager.getAppConfig().setServerUrls(serverUrls);
+        int batchSize = Math.max(Integer.parseInt(batchSizeInput.getText().toString()), 1);
+        gameFileManager.getAppConfig().setConcurrentDownloads(batchSize);
+        gameFileManager.getAppConfig().saveConfig();
+        return true;
+    }
+
     private void onCreateShortcutButtonPressed() {
         // 请求向桌面添加快捷方式
         ShortcutManager shortcutManager = getApplicationContext().getSystemService(ShortcutManager.class);
@@ -716,6 +812,7 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
     public void updateConsole(String message) {
         runOnUiThread(() -> {
             consoleOutput.append(message + "\n");
@@ -723,6 +820,7 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Override
     public void logErrorToConsole(String message, Throwable ex) {
         StringWriter sw = new StringWriter();
         ex.printStackTrace(new PrintWriter(sw));
@@ -738,6 +836,16 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    @Override
+    public void onProgress(ProgressSnapshot progress) {
+        updateProgress(progress.downloadedFiles, progress.totalFiles, progress.downloadedBytes >> 20, progress.totalBytes >> 20);
+        if (progress.downloadedFiles < progress.totalFiles) {
+            String throughput = progress.formatThroughput();
+            runOnUiThread(() -> progressText.append("\n" + throughput));
+        }
+    }
+
+    @Override
     public void updateProgress(int downloadedFiles, int totalFiles, long downloadedBytes, long totalBytes) {
         runOnUiThread(() -> {
             progressBar.setVisibility(View.VISIBLE);
@@ -745,6 +853,11 @@ public class MainActivity extends AppCompatActivity {
             int progress = totalBytes > 0 ? (int) ((downloadedBytes * 100) / totalBytes) : 0;
             progressBar.setProgress(progress);
             progressText.setText("进度: " + progress + "%" + " (" + downloadedFiles + "/" + totalFiles + " 文件, " + downloadedBytes + "/" + totalBytes + " MB)");
+            MetricsRegistry metrics = Metrics.getRegistry();
+            if (metrics != null) {
+                statsText.setVisibility(View.VISIBLE);
+                statsText.setText(metrics.formatSummary());
+            }
             if (downloadedFiles == totalFiles && downloadedBytes == totalBytes) {
                 progressBar.setVisibility(View.GONE);
                 progressText.setVisibility(View.GONE);
@@ -4,32 +4,32 @@ import android.os.IBinder;
 import android.os.RemoteException;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import moe.shizuku.server.IShizukuApplication;
 
+/**
+ * Attached clients, indexed by (uid, pid) and by uid. Lookups never lock, since one runs for every
+ * process a client spawns.
+ */
 public class ClientManager {
-    private final List<ClientRecord> clientRecords = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Long, ClientRecord> clientsByProcess = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<ClientRecord>> clientsByUid = new ConcurrentHashMap<>();
+
+    private static long key(int uid, int pid) {
+        return ((long) uid << 32) | (pid & 0xffffffffL);
+    }
+
     public List<ClientRecord> findClients(int uid) {
-        synchronized (this) {
-            List<ClientRecord> res = new ArrayList<>();
-            for (ClientRecord clientRecord : clientRecords) {
-                if (clientRecord.uid == uid) {
-                    res.add(clientRecord);
-                }
-            }
-            return res;
-        }
+        Set<ClientRecord> clients = clientsByUid.get(uid);
+        return clients != null ? new ArrayList<>(clients) : new ArrayList<>();
     }
 
     public ClientRecord findClient(int uid, int pid) {
-        for (ClientRecord clientRecord : clientRecords) {
-            if (clientRecord.pid == pid && clientRecord.uid == uid) {
-                return clientRecord;
-            }
-        }
-        return null;
+        return clientsByProcess.get(key(uid, pid));
     }
 
     public ClientRecord requireClient(int callingUid, int callingPid) {
@@ -50,15 +50,37 @@ public class ClientManager {
     public ClientRecord addClient(int uid, int pid, IShizukuApplication client, String packageName, int apiVersion) {
         ClientRecord clientRecord = new ClientRecord(uid, pid, client, packageName, apiVersion);
 
+        // Indexed before linking, so a client that dies right away is still removed
+        ClientRecord previous = clientsByProcess.put(key(uid, pid), clientRecord);
+        clientsByUid.compute(uid, (k, clients) -> {
+            if (clients == null) {
+                clients = ConcurrentHashMap.newKeySet();
+            }
+            if (previous != null) {
+                clients.remove(previous);
+            }
+            clients.add(clientRecord);
+            return clients;
+        });
+
         IBinder binder = client.asBinder();
-        IBinder.DeathRecipient deathRecipient = () -> clientRecords.remove(clientRecord);
+        IBinder.DeathRecipient deathRecipient = () -> removeClient(clientRecord);
         try {
             binder.linkToDeath(deathRecipient, 0);
         } catch (RemoteException e) {
+            removeClient(clientRecord);
             return null;
         }
-
-        clientRecords.add(clientRecord);
         return clientRecord;
     }
-}
\ No newline at end of file
+
+    private void removeClient(ClientRecord clientRecord) {
+        // Only if it was not replaced by a newer record for the same process
+        if (clientsByProcess.remove(key(clientRecord.uid, clientRecord.pid), clientRecord)) {
+            clientsByUid.computeIfPresent(clientRecord.uid, (k, clients) -> {
+                clients.remove(clientRecord);
+                return clients.isEmpty() ? null : clients;
+            });
+        }
+    }
+}
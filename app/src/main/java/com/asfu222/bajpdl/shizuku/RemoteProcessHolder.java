@@ -4,18 +4,40 @@ import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 
+import com.asfu222.bajpdl.util.TransferService;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 public class RemoteProcessHolder extends IRemoteProcess.Stub {
 
+    // Threads that block in Process.waitFor, one per running process; reused once a process exits
+    private static final ExecutorService waiters = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "process-waiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final Process process;
+    // Completed with the exit code as soon as the process exits, so waits return without polling
+    private final Future<Integer> exit;
     private ParcelFileDescriptor in;
     private ParcelFileDescriptor out;
+    // Only set when the child writes its stderr straight into this pipe
+    private ParcelFileDescriptor err;
 
     public RemoteProcessHolder(Process process, IBinder token) {
         this.process = process;
+        this.exit = waiters.submit((Callable<Integer>) process::waitFor);
 
         if (token != null) {
             try {
@@ -33,8 +55,64 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
         }
     }
 
+    /**
+     * Starts the process with its stdin, stdout and stderr connected straight to pipes whose other
+     * ends go to the client, so no thread in this process has to copy anything. If the pipes
+     * cannot be reopened through /proc, falls back to copying the process streams.
+     */
+    public static RemoteProcessHolder start(String[] cmd, String[] env, String dir, IBinder token) throws IOException {
+        ParcelFileDescriptor[] stdin = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor[] stdout = ParcelFileDescriptor.createPipe();
+        ParcelFileDescriptor[] stderr = ParcelFileDescriptor.createPipe();
+        Process process;
+        try {
+            ProcessBuilder builder = new ProcessBuilder(cmd)
+                    .redirectInput(procPath(stdin[0]))
+                    .redirectOutput(procPath(stdout[1]))
+                    .redirectError(procPath(stderr[1]));
+            if (env != null) {
+                // Same as Runtime.exec: a given environment replaces the inherited one
+                builder.environment().clear();
+                for (String entry : env) {
+                    int separator = entry.indexOf('=');
+                    if (separator > 0) {
+                        builder.environment().put(entry.substring(0, separator), entry.substring(separator + 1));
+                    }
+                }
+            }
+            if (dir != null) {
+                builder.directory(new File(dir));
+            }
+            process = builder.start();
+        } catch (IOException e) {
+            closeQuietly(stdin[0], stdin[1], stdout[0], stdout[1], stderr[0], stderr[1]);
+            return new RemoteProcessHolder(Runtime.getRuntime().exec(cmd, env, dir != null ? new File(dir) : null), token);
+        }
+        // The child has its own copies; ours would keep the client from ever seeing end of stream
+        closeQuietly(stdin[0], stdout[1], stderr[1]);
+
+        RemoteProcessHolder holder = new RemoteProcessHolder(process, token);
+        holder.out = stdin[1];
+        holder.in = stdout[0];
+        holder.err = stderr[0];
+        return holder;
+    }
+
+    private static File procPath(ParcelFileDescriptor pfd) {
+        return new File("/proc/self/fd/" + pfd.getFd());
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor... pfds) {
+        for (ParcelFileDescriptor pfd : pfds) {
+            try {
+                pfd.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     @Override
-    public ParcelFileDescriptor getOutputStream() {
+    public synchronized ParcelFileDescriptor getOutputStream() {
         if (out == null) {
             try {
                 out = pipeTo(process.getOutputStream());
@@ -50,8 +128,12 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        new TransferThread(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide))
-                .start();
+        try {
+            TransferService.copy(inputStream, new ParcelFileDescriptor.AutoCloseOutputStream(writeSide));
+        } catch (IOException e) {
+            closeQuietly(readSide, writeSide);
+            throw e;
+        }
 
         return readSide;
     }
@@ -61,14 +143,18 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
         ParcelFileDescriptor readSide = pipe[0];
         ParcelFileDescriptor writeSide = pipe[1];
 
-        new TransferThread(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream)
-                .start();
+        try {
+            TransferService.copy(new ParcelFileDescriptor.AutoCloseInputStream(readSide), outputStream);
+        } catch (IOException e) {
+            closeQuietly(readSide, writeSide);
+            throw e;
+        }
 
         return writeSide;
     }
 
     @Override
-    public ParcelFileDescriptor getInputStream() {
+    public synchronized ParcelFileDescriptor getInputStream() {
         if (in == null) {
             try {
                 in = pipeFrom(process.getInputStream());
@@ -80,8 +166,14 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
     }
 
     @Override
-    public ParcelFileDescriptor getErrorStream() {
+    public synchronized ParcelFileDescriptor getErrorStream() {
         try {
+            if (err != null) {
+                ParcelFileDescriptor result = err;
+                err = null;
+                return result;
+            }
+            // Handed out already (or copied from the process stream, which can only be read once)
             return pipeFrom(process.getErrorStream());
         } catch (IOException e) {
             throw new IllegalStateException(e);
@@ -91,9 +183,11 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
     @Override
     public int waitFor() {
         try {
-            return process.waitFor();
+            return exit.get();
         } catch (InterruptedException e) {
             throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
         }
     }
 
@@ -109,74 +203,21 @@ public class RemoteProcessHolder extends IRemoteProcess.Stub {
 
     @Override
     public boolean alive() throws RemoteException {
-        try {
-            this.exitValue();
-            return false;
-        } catch (IllegalThreadStateException e) {
-            return true;
-        }
+        return !exit.isDone();
     }
 
     @Override
     public boolean waitForTimeout(long timeout, String unitName) throws RemoteException {
         TimeUnit unit = TimeUnit.valueOf(unitName);
-        long startTime = System.nanoTime();
-        long rem = unit.toNanos(timeout);
-
-        do {
-            try {
-                exitValue();
-                return true;
-            } catch (IllegalThreadStateException ex) {
-                if (rem > 0) {
-                    try {
-                        Thread.sleep(
-                                Math.min(TimeUnit.NANOSECONDS.toMillis(rem) + 1, 100));
-                    } catch (InterruptedException e) {
-                        throw new IllegalStateException();
-                    }
-                }
-            }
-            rem = unit.toNanos(timeout) - (System.nanoTime() - startTime);
-        } while (rem > 0);
-        return false;
-    }
-
-    public static class TransferThread extends Thread {
-        final InputStream mIn;
-        final OutputStream mOut;
-
-        public TransferThread(InputStream in, OutputStream out) {
-            super("ParcelFileDescriptor Transfer Thread");
-            mIn = in;
-            mOut = out;
-            setDaemon(true);
-        }
-
-        @Override
-        public void run() {
-            byte[] buf = new byte[8192];
-            int len;
-
-            try {
-                while ((len = mIn.read(buf)) > 0) {
-                    mOut.write(buf, 0, len);
-                    mOut.flush();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    mIn.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                try {
-                    mOut.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+        try {
+            exit.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (InterruptedException e) {
+            throw new IllegalStateException();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
         }
     }
-}
\ No newline at end of file
+}
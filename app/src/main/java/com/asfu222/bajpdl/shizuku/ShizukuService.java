@@ -5,15 +5,27 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 
+import com.asfu222.bajpdl.util.FileListing;
+import com.asfu222.bajpdl.util.TransferService;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.CopyOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.zip.CRC32;
 
 public class ShizukuService extends IUserService.Stub {
     private final ClientManager clientManager = new ClientManager();
@@ -40,7 +52,7 @@ public class ShizukuService extends IUserService.Stub {
             File file = new File(path);
             status[0] = "success";
             return ParcelFileDescriptor.open(file,
-                    ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE);
+                    ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
         } catch (FileNotFoundException e) {
             status[0] = printStackTrace(e);
             return null;
@@ -81,7 +93,12 @@ public class ShizukuService extends IUserService.Stub {
 
             if (atomicMove) {
                 if (replaceExisting) {
-                    Files.move(src, tgt, StandardCopyOption.REPLACE_EXISTING);
+                    try {
+                        // rename(2) replaces the target in one step
+                        Files.move(src, tgt, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (AtomicMoveNotSupportedException e) {
+                        Files.move(src, tgt, StandardCopyOption.REPLACE_EXISTING);
+                    }
                 } else Files.move(src, tgt);
             } else {
                 CopyOption[] options = new CopyOption[]{};
@@ -96,17 +113,106 @@ public class ShizukuService extends IUserService.Stub {
     }
 
     @Override
-    public final IRemoteProcess newProcess(String[] cmd, String[] env, String dir) {
-        java.lang.Process process;
+    public void link(String source, String target, String[] status) {
+        try {
+            // Link under a temporary name and rename it over target, so target is never missing
+            Path tgt = Paths.get(target);
+            Path link = tgt.resolveSibling(tgt.getFileName() + ".link");
+            try {
+                Files.deleteIfExists(link);
+                Files.createLink(link, Paths.get(source));
+                Files.move(link, tgt, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(link);
+            }
+            status[0] = "success";
+        } catch (Exception e) {
+            status[0] = printStackTrace(e);
+        }
+    }
+
+    @Override
+    public long crc32(String path, String[] status) {
+        // Hash here so only the result crosses the binder instead of every byte of the file
+        try (InputStream in = new FileInputStream(path)) {
+            CRC32 crc32 = new CRC32();
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                crc32.update(buffer, 0, bytesRead);
+            }
+            status[0] = "success";
+            return crc32.getValue();
+        } catch (Exception e) {
+            status[0] = printStackTrace(e);
+            return -1;
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor list(String path, String[] status) {
+        Path root = Paths.get(path);
+        if (!Files.exists(root)) {
+            status[0] = "No such file or directory: " + path;
+            return null;
+        }
         try {
-            process = Runtime.getRuntime().exec(cmd, env, dir != null ? new File(dir) : null);
+            ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+            // Streamed as the tree is walked, so the client can start on the first entries right away
+            TransferService.Writer listing = out -> {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 65536));
+                try {
+                    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                            FileListing.writeEntry(data, dir.toString(), true, attrs.size(), attrs.lastModifiedTime().toMillis());
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                            if (attrs.isRegularFile()) {
+                                FileListing.writeEntry(data, file.toString(), false, attrs.size(), attrs.lastModifiedTime().toMillis());
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFileFailed(Path file, IOException e) {
+                            // Deleted or renamed since its directory was read
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                    FileListing.writeEnd(data);
+                } catch (IOException e) {
+                    FileListing.writeError(data, e.toString());
+                }
+                data.flush();
+            };
+            try {
+                TransferService.produce(new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]), listing);
+            } catch (IOException e) {
+                pipe[0].close();
+                pipe[1].close();
+                throw e;
+            }
+            status[0] = "success";
+            return pipe[0];
         } catch (IOException e) {
-            throw new IllegalStateException(e.getMessage());
+            status[0] = printStackTrace(e);
+            return null;
         }
+    }
 
+    @Override
+    public final IRemoteProcess newProcess(String[] cmd, String[] env, String dir) {
         ClientRecord clientRecord = clientManager.findClient(Binder.getCallingUid(), Binder.getCallingPid());
         IBinder token = clientRecord != null ? clientRecord.client.asBinder() : null;
-        return new RemoteProcessHolder(process, token);
+        try {
+            return RemoteProcessHolder.start(cmd, env, dir, token);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
     }
 
     private static String printStackTrace(Exception e) {
@@ -2,20 +2,33 @@ package com.asfu222.bajpdl.util;
 
 import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
+import android.os.StatFs;
 import android.os.Environment;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 
 import com.asfu222.bajpdl.shizuku.IUserService;
 import com.asfu222.bajpdl.shizuku.ShizukuRemoteProcess;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
-import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
@@ -27,28 +40,126 @@ import java.io.File;
 public abstract class EscalatedFS {
     private static boolean rootAvailable;
     private static IUserService shizukuService;
+    private static final LocalFileSystem LOCAL = new LocalFileSystem();
+    private static Boolean findSupportsPrintf;
+    // Result of canReadWriteAndroidData for this session, so each operation does not stat the directory again
+    private static volatile Boolean androidDataAccessible;
+
+    // What is known about escalated paths, so repeated exists/size checks skip the Shizuku call or
+    // root process. Filled from listings and lookups, and kept current by our own writes; changes
+    // made by anything else are only seen after beginSession().
+    private static final Map<Path, FileEntry> metadata = new ConcurrentHashMap<>();
+    // Marks a path known not to exist
+    private static final FileEntry MISSING = new FileEntry(null, false, FileEntry.UNKNOWN, FileEntry.UNKNOWN);
+    // Directories whose whole tree was listed: a path under one that is not in metadata does not exist
+    private static final Set<Path> listedRoots = ConcurrentHashMap.newKeySet();
+    // Bumped by every write we record, so a listing that raced with one does not overwrite it; guarded by metadata
+    private static long mutations;
 
     public static void setRootAvailable(boolean value) {
         rootAvailable = value;
+        beginSession();
     }
 
     public static void setShizukuService(IUserService service) {
         shizukuService = service;
+        beginSession();
     }
 
     public static boolean isReady() {
         return rootAvailable || shizukuService != null;
     }
 
+    /**
+     * Forgets cached metadata and the storage permission check. Call before a run, since the game
+     * or the user may have changed files or permissions in the meantime.
+     */
+    public static void beginSession() {
+        androidDataAccessible = null;
+        synchronized (metadata) {
+            metadata.clear();
+            listedRoots.clear();
+            mutations++;
+        }
+    }
+
     private static boolean needsEscalation(Path path) {
-        return path.toString().contains("/Android/data/com.YostarJP.BlueArchive/files") && !canReadWriteAndroidData();
+        if (!path.toString().contains("/Android/data/com.YostarJP.BlueArchive/files")) {
+            return false;
+        }
+        Boolean accessible = androidDataAccessible;
+        if (accessible == null) {
+            accessible = canReadWriteAndroidData();
+            androidDataAccessible = accessible;
+        }
+        return !accessible;
     }
 
+    /**
+     * Checks the permission now; file operations use the result cached at the start of the session.
+     */
     public static boolean canReadWriteAndroidData() {
         File dataDir = new File(Environment.getExternalStorageDirectory() + "/Android/data/com.YostarJP.BlueArchive/files/");
         return dataDir.canRead() && dataDir.canWrite();
     }
 
+    private static FileEntry cached(Path path) {
+        FileEntry entry = metadata.get(path);
+        if (entry != null) {
+            return entry;
+        }
+        for (Path parent = path.getParent(); parent != null; parent = parent.getParent()) {
+            if (listedRoots.contains(parent)) {
+                return MISSING;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Records what a lookup found, unless one of our writes recorded something newer meanwhile.
+     */
+    private static void remember(Path path, FileEntry entry) {
+        metadata.putIfAbsent(path, entry);
+    }
+
+    /**
+     * Records a complete listing of root. If we wrote anything while it ran, entries already known
+     * are kept, and root is not marked as complete since the listing may predate those writes.
+     */
+    private static void rememberListing(Path root, List<FileEntry> entries, long mutationsBefore) {
+        synchronized (metadata) {
+            boolean current = mutations == mutationsBefore;
+            for (FileEntry entry : entries) {
+                if (current) {
+                    metadata.put(entry.path, entry);
+                } else {
+                    metadata.putIfAbsent(entry.path, entry);
+                }
+            }
+            if (current) {
+                listedRoots.add(root);
+            }
+        }
+    }
+
+    /**
+     * Records the effect of one of our own writes; entry is null for a path that no longer exists.
+     */
+    private static void recordWrite(Path path, FileEntry entry) {
+        if (!needsEscalation(path)) {
+            return;
+        }
+        synchronized (metadata) {
+            mutations++;
+            metadata.put(path, entry != null ? entry : MISSING);
+        }
+    }
+
+    private static FileEntry written(Path path) {
+        return new FileEntry(path, false, FileEntry.UNKNOWN, FileEntry.UNKNOWN);
+    }
+
     public static Path createDirectories(Path path) throws IOException {
         if (!needsEscalation(path)) {
             return Files.createDirectories(path);
@@ -69,18 +180,43 @@ public abstract class EscalatedFS {
         } else {
             throw new IOException("无可用的 root 或 Shizuku 权限");
         }
+        for (Path dir = path; dir != null && !listedRoots.contains(dir); dir = dir.getParent()) {
+            recordWrite(dir, new FileEntry(dir, true, FileEntry.UNKNOWN, FileEntry.UNKNOWN));
+        }
         return path;
     }
 
     public static OutputStream newOutputStream(Path path) throws IOException {
+        return newOutputStream(path, 0);
+    }
+
+    /**
+     * Opens the file for writing, truncating it, and reserves {@code preallocateSize} bytes up
+     * front where the filesystem supports it.
+     */
+    public static OutputStream newOutputStream(Path path, long preallocateSize) throws IOException {
         if (!needsEscalation(path)) {
-            return Files.newOutputStream(path);
+            FileOutputStream out = new FileOutputStream(path.toFile());
+            try {
+                preallocate(out.getFD(), preallocateSize);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+            return out;
         }
         if (shizukuService != null) {
             try {
                 String[] status = new String[1];
                 ParcelFileDescriptor pfd = shizukuService.openWrite(path.toString(), status);
                 if (status[0].equals("success")) {
+                    try {
+                        preallocate(pfd.getFileDescriptor(), preallocateSize);
+                    } catch (IOException e) {
+                        pfd.close();
+                        throw e;
+                    }
+                    recordWrite(path, written(path));
                     return new ParcelFileDescriptor.AutoCloseOutputStream(pfd);
                 } else {
                     throw new IOException("Shizuku 文件写入错误: " + status[0]);
@@ -89,11 +225,50 @@ public abstract class EscalatedFS {
                 throw new IOException("Shizuku 文件写入错误", e);
             }
         } else if (rootAvailable) {
+            recordWrite(path, written(path));
+            if (preallocateSize > 0) {
+                // "1<>" opens the file without truncating the space fallocate just reserved
+                return new ProcessOutputStream(execEscalated("rm -f " + path + "; fallocate -l " + preallocateSize + " " + path + " 2>/dev/null; cat 1<> " + path));
+            }
             return new ProcessOutputStream(execEscalated("cat > " + path.toString()));
         }
         throw new IOException("无可用的 root 或 Shizuku 权限");
     }
 
+    /**
+     * Like {@link #newOutputStream(Path, long)} but as a channel. Local and Shizuku targets get the
+     * file descriptor's own {@link java.nio.channels.FileChannel}, so large direct buffers go
+     * straight to write(2), and a shared-memory ring buffer would only add a copy and wake-ups.
+     * Under root the "cat" pipe is wrapped as it is: passing it whole buffers instead of 8 KB
+     * pieces measured no faster and no cheaper on CPU (see the jmh module's PipeWriteBenchmark).
+     */
+    public static WritableByteChannel newChannel(Path path, long preallocateSize) throws IOException {
+        OutputStream out = newOutputStream(path, preallocateSize);
+        if (out instanceof FileOutputStream) {
+            // Closing the channel closes the stream, and with it the ParcelFileDescriptor
+            return ((FileOutputStream) out).getChannel();
+        }
+        return Channels.newChannel(out);
+    }
+
+    private static void preallocate(FileDescriptor fd, long size) throws IOException {
+        if (size <= 0) {
+            return;
+        }
+        try {
+            Os.posix_fallocate(fd, 0, size);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("存储空间不足，需要 " + size + " 字节", e);
+            }
+            // Not supported by this filesystem (e.g. FUSE); at least set the final size in one step
+            try {
+                Os.ftruncate(fd, size);
+            } catch (ErrnoException ignored) {
+            }
+        }
+    }
+
     public static InputStream newInputStream(Path path) throws IOException {
         if (!needsEscalation(path)) {
             return Files.newInputStream(path);
@@ -156,27 +331,125 @@ public abstract class EscalatedFS {
         } else {
             throw new IOException("无可用的 root 或 Shizuku 权限");
         }
+        recordWrite(path, null);
+    }
+
+    /**
+     * Renames source over target in a single step, so readers of target only ever see the old or the new file.
+     */
+    public static void move(Path source, Path target) throws IOException {
+        if (!needsEscalation(source) && !needsEscalation(target)) {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Puts source at target with as little I/O as possible: a hardlink, then a rename, and only
+     * a full copy when both fail (e.g. staging and game dirs are on different filesystems).
+     */
+    public static void install(Path source, Path target) throws IOException {
+        try {
+            link(source, target);
+            return;
+        } catch (IOException | UnsupportedOperationException ignored) {
+        }
+        try {
+            move(source, target);
+            return;
+        } catch (IOException | UnsupportedOperationException ignored) {
+        }
+        copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Hardlinks source to a temporary name next to target and renames that over target, so
+     * target keeps its old contents until the new ones are in place, even if linking fails.
+     */
+    public static void link(Path source, Path target) throws IOException {
+        if (!needsEscalation(source) && !needsEscalation(target)) {
+            Path link = linkPath(target);
+            try {
+                Files.deleteIfExists(link);
+                Files.createLink(link, source);
+                Files.move(link, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                // Also left behind when target was already a link to source, since that rename does nothing
+                Files.deleteIfExists(link);
+            }
+            return;
+        }
+        if (shizukuService != null) {
+            try {
+                String[] status = new String[1];
+                shizukuService.link(source.toString(), target.toString(), status);
+                if (!status[0].equals("success")) {
+                    throw new IOException("Shizuku 硬链接错误: " + status[0]);
+                }
+            } catch (RemoteException e) {
+                throw new IOException("Shizuku 硬链接错误", e);
+            }
+        } else if (rootAvailable) {
+            try {
+                Path link = linkPath(target);
+                if (execEscalated("ln -f " + source + " " + link + " && mv -f " + link + " " + target + "; r=$?; rm -f " + link + "; exit $r").waitFor() != 0) {
+                    throw new IOException("硬链接错误: " + source + " -> " + target);
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("文件操作被打断: " + e.getMessage(), e);
+            }
+        } else {
+            throw new IOException("无可用的 root 或 Shizuku 权限");
+        }
+        recordWrite(target, copied(source, target));
+    }
+
+    /**
+     * @return the temporary name {@link #link} creates next to target
+     */
+    private static Path linkPath(Path target) {
+        return target.resolveSibling(target.getFileName() + ".link");
+    }
+
+    /**
+     * What target looks like after source was copied, moved or linked to it.
+     */
+    private static FileEntry copied(Path source, Path target) {
+        FileEntry entry = metadata.get(source);
+        if (entry == null || entry == MISSING) {
+            return written(target);
+        }
+        return new FileEntry(target, entry.directory, entry.size, entry.lastModified);
     }
 
     public static boolean exists(Path path) throws IOException {
         if (!needsEscalation(path)) {
             return Files.exists(path);
         }
+        FileEntry entry = cached(path);
+        if (entry != null) {
+            return entry != MISSING;
+        }
 
+        boolean exists;
         if (shizukuService != null) {
             try {
-                return shizukuService.exists(path.toString());
+                exists = shizukuService.exists(path.toString());
             } catch (RemoteException e) {
                 throw new IOException("Shizuku 文件检测错误", e);
             }
         } else if (rootAvailable) {
             try {
-                return execEscalated("test -e " + path.toString()).waitFor() == 0;
+                exists = execEscalated("test -e " + path.toString()).waitFor() == 0;
             } catch (InterruptedException e) {
                 throw new IOException("文件检测错误: " + e.getMessage(), e);
             }
+        } else {
+            throw new IOException("无可用的 root 或 Shizuku 权限");
         }
-        throw new IOException("无可用的 root 或 Shizuku 权限");
+        remember(path, exists ? written(path) : MISSING);
+        return exists;
     }
 
     public static void copy(Path source, Path target, java.nio.file.CopyOption... options) throws IOException {
@@ -250,12 +523,36 @@ public abstract class EscalatedFS {
         else {
             throw new IOException("无可用的 root 或 Shizuku 权限");
         }
+        recordWrite(target, copied(source, target));
+        if (atomicMove) {
+            recordWrite(source, null);
+        }
     }
 
     public static long size(Path path) throws IOException {
         if (!needsEscalation(path)) {
             return Files.size(path);
         }
+        FileEntry entry = cached(path);
+        if (entry != null && entry.hasSize() && !entry.directory) {
+            return entry.size;
+        }
+        long before;
+        synchronized (metadata) {
+            before = mutations;
+        }
+        long size = sizeEscalated(path);
+        synchronized (metadata) {
+            // Unless a write since the lookup started may have changed the size
+            if (mutations == before) {
+                long lastModified = entry != null && entry != MISSING ? entry.lastModified : FileEntry.UNKNOWN;
+                metadata.put(path, new FileEntry(path, false, size, lastModified));
+            }
+        }
+        return size;
+    }
+
+    private static long sizeEscalated(Path path) throws IOException {
         if (shizukuService != null) {
             try {
                 return shizukuService.size(path.toString());
@@ -295,30 +592,110 @@ public abstract class EscalatedFS {
         throw new IOException("无可用的 root 或 Shizuku 权限");
     }
 
+    /**
+     * Bytes an app may still write to the filesystem holding path. Android/data is on the same
+     * filesystem as the rest of shared storage, so when the app may not look inside the game
+     * directory the nearest ancestor it can reach is asked instead, without a root or Shizuku call.
+     */
+    public static long usableSpace(Path path) throws IOException {
+        for (Path current = path.toAbsolutePath(); current != null; current = current.getParent()) {
+            try {
+                return new StatFs(current.toString()).getAvailableBytes();
+            } catch (IllegalArgumentException ignored) {
+                // Missing or off limits; its parent is on the same filesystem
+            }
+        }
+        throw new IOException("无法获取剩余存储空间: " + path);
+    }
+
+    /**
+     * CRC32 of the file. Through Shizuku the service hashes it and only the result crosses the
+     * binder; otherwise the file is streamed and hashed here.
+     */
+    public static long crc32(Path path) throws IOException {
+        if (needsEscalation(path) && shizukuService != null) {
+            try {
+                String[] status = new String[1];
+                long crc = shizukuService.crc32(path.toString(), status);
+                if (!status[0].equals("success")) {
+                    throw new IOException("Shizuku 计算CRC32时报错: " + status[0]);
+                }
+                return crc;
+            } catch (RemoteException e) {
+                throw new IOException("Shizuku 计算CRC32时报错", e);
+            }
+        }
+        try (InputStream in = newInputStream(path)) {
+            return FileUtils.calculateCRC32(in);
+        }
+    }
+
     public static Stream<Path> walk(Path start) throws IOException {
         if (!needsEscalation(start)) {
             return Files.walk(start);
         }
-        Process process = execEscalated("find " + start.toString() + " -type f -o -type d");
+        return list(start).map(entry -> entry.path);
+    }
 
-        java.io.BufferedReader reader = new java.io.BufferedReader(
-                new java.io.InputStreamReader(process.getInputStream()));
+    /**
+     * Every file and directory under start with its size and mtime, in a single Shizuku call or
+     * root process instead of one per path. The result also answers later exists and size calls
+     * under start without another escalation.
+     */
+    public static Stream<FileEntry> list(Path start) throws IOException {
+        if (!needsEscalation(start)) {
+            return LOCAL.list(start);
+        }
+        long before;
+        synchronized (metadata) {
+            before = mutations;
+        }
+        // Read in full so the cache only ever holds complete listings
+        List<FileEntry> entries;
+        try (Stream<FileEntry> listing = listEscalated(start)) {
+            entries = listing.collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        rememberListing(start, entries, before);
+        return entries.stream();
+    }
 
-        return reader.lines()
-                .filter(line -> !line.isEmpty())
-                .map(java.nio.file.Paths::get)
-                .onClose(() -> {
-                    try {
-                        reader.close();
-                        if (process.waitFor() != 0) {
-                            throw new java.io.UncheckedIOException(
-                                    new IOException("Failed to walk directory: " + start));
-                        }
-                    } catch (IOException | InterruptedException e) {
-                        throw new java.io.UncheckedIOException(
-                                new IOException("Error closing resources: " + e.getMessage(), e));
-                    }
-                });
+    private static Stream<FileEntry> listEscalated(Path start) throws IOException {
+        if (shizukuService != null) {
+            try {
+                String[] status = new String[1];
+                ParcelFileDescriptor pfd = shizukuService.list(start.toString(), status);
+                if (!status[0].equals("success")) {
+                    throw new IOException("Shizuku 列出文件夹时报错: " + status[0]);
+                }
+                return FileListing.readFrames(new ParcelFileDescriptor.AutoCloseInputStream(pfd));
+            } catch (RemoteException e) {
+                throw new IOException("Shizuku 列出文件夹时报错", e);
+            }
+        } else if (rootAvailable) {
+            String command;
+            if (findSupportsPrintf()) {
+                command = "find " + start + " \\( -type f -o -type d \\) -printf '" + FileListing.FIND_FORMAT + "'";
+            } else {
+                // Older toybox find has no -printf; names are still NUL-separated, stats left unknown
+                command = "find " + start + " -type d -exec printf 'd -1 -1 %s\\0' {} + && "
+                        + "find " + start + " -type f -exec printf 'f -1 -1 %s\\0' {} +";
+            }
+            return FileListing.readFind(new ProcessInputStream(execEscalated(command)));
+        }
+        throw new IOException("无可用的 root 或 Shizuku 权限");
+    }
+
+    private static synchronized boolean findSupportsPrintf() throws IOException {
+        if (findSupportsPrintf == null) {
+            try {
+                findSupportsPrintf = execEscalated("find / -maxdepth 0 -printf ''").waitFor() == 0;
+            } catch (InterruptedException e) {
+                throw new IOException("文件操作被打断: " + e.getMessage(), e);
+            }
+        }
+        return findSupportsPrintf;
     }
 
     private static Process execEscalated(String command) throws IOException {
@@ -335,25 +712,13 @@ public abstract class EscalatedFS {
     static class ProcessOutputStream extends OutputStream {
         private final Process process;
         private final OutputStream out;
-        private final Thread errorDrainer;
+        // Read in close(), so an open stream holds no thread for it
+        private final InputStream errors;
 
         ProcessOutputStream(Process process) {
             this.process = process;
             this.out = process.getOutputStream();
-
-            // Drain error stream to prevent blocking
-            this.errorDrainer = new Thread(() -> {
-                try (InputStream errorStream = process.getErrorStream()) {
-                    byte[] buffer = new byte[1024];
-                    while (errorStream.read(buffer) != -1) {
-                        // Drain error stream
-                    }
-                } catch (IOException ignored) {
-                    // Ignore exceptions during cleanup
-                }
-            });
-            errorDrainer.setDaemon(true);
-            errorDrainer.start();
+            this.errors = process.getErrorStream();
         }
 
         @Override
@@ -386,21 +751,11 @@ public abstract class EscalatedFS {
                 exception = e;
             }
 
+            // Ends once the process exits
+            String errorMessage = TransferService.readErrors(errors);
             try {
                 int exitCode = process.waitFor();
                 if (exitCode != 0 && exitCode != 141) {  // 141 is SIGPIPE
-                    String errorMessage;
-                    try (InputStream es = process.getErrorStream();
-                         ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                        byte[] buffer = new byte[1024];
-                        int bytesRead;
-                        while ((bytesRead = es.read(buffer)) != -1) {
-                            baos.write(buffer, 0, bytesRead);
-                        }
-                        errorMessage = new String(baos.toByteArray(), StandardCharsets.UTF_8).trim();
-                    } catch (IOException e) {
-                        errorMessage = "Failed to get error message";
-                    }
                     throw new IOException("Process exited with code " + exitCode
                             + (errorMessage.isEmpty() ? "" : ": " + errorMessage));
                 }
@@ -411,11 +766,6 @@ public abstract class EscalatedFS {
                 process.destroy();
             }
 
-            try {
-                errorDrainer.join(1000);
-            } catch (InterruptedException ignored) {
-            }
-
             if (exception != null) {
                 throw exception;
             }
@@ -426,26 +776,14 @@ public abstract class EscalatedFS {
         private final Process process;
         private final InputStream in;
         private final BufferedInputStream bufferedIn;
-        private final Thread errorDrainer;
+        // Read in close(), so an open stream holds no thread for it
+        private final InputStream errors;
 
         ProcessInputStream(Process process) {
             this.process = process;
             this.in = process.getInputStream();
             this.bufferedIn = new BufferedInputStream(in);
-
-            // Drain error stream in background to prevent blocking
-            errorDrainer = new Thread(() -> {
-                try (InputStream errorStream = process.getErrorStream()) {
-                    byte[] buffer = new byte[1024];
-                    while (errorStream.read(buffer) != -1) {
-                        // Drain error stream
-                    }
-                } catch (IOException ignored) {
-                    // Ignore exceptions during cleanup
-                }
-            });
-            errorDrainer.setDaemon(true);
-            errorDrainer.start();
+            this.errors = process.getErrorStream();
         }
 
         @Override
@@ -489,11 +827,14 @@ public abstract class EscalatedFS {
                 if (exception == null) exception = e;
             }
 
+            // Ends once the process exits, which it does early on SIGPIPE if reading stopped short
+            String errorMessage = TransferService.readErrors(errors);
             try {
                 int exitCode = process.waitFor();
                 // SIGPIPE (141) is normal when reading ends before process finishes
                 if (exitCode != 0 && exitCode != 141) {
-                    throw new IOException("Process exited with error code: " + exitCode);
+                    throw new IOException("Process exited with error code: " + exitCode
+                            + (errorMessage.isEmpty() ? "" : ": " + errorMessage));
                 }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
@@ -509,4 +850,4 @@ public abstract class EscalatedFS {
             }
         }
     }
-}
\ No newline at end of file
+}
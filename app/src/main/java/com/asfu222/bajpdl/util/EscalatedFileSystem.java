@@ -0,0 +1,124 @@
+package com.asfu222.bajpdl.util;
+
+import com.asfu222.bajpdl.metrics.Metrics;
+import com.asfu222.bajpdl.metrics.Span;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Lets the download engine reach the game directory through {@link EscalatedFS}. Every call is
+ * timed under {@code escalated.<op>} so Shizuku/root round trips show up in the metrics; for
+ * streams only opening them is timed.
+ */
+public class EscalatedFileSystem implements GameFileSystem {
+    @Override
+    public Path createDirectories(Path path) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.createDirectories")) {
+            return EscalatedFS.createDirectories(path);
+        }
+    }
+
+    @Override
+    public OutputStream newOutputStream(Path path, long preallocateSize) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.newOutputStream")) {
+            return EscalatedFS.newOutputStream(path, preallocateSize);
+        }
+    }
+
+    @Override
+    public WritableByteChannel newChannel(Path path, long preallocateSize) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.newChannel")) {
+            return EscalatedFS.newChannel(path, preallocateSize);
+        }
+    }
+
+    @Override
+    public InputStream newInputStream(Path path) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.newInputStream")) {
+            return EscalatedFS.newInputStream(path);
+        }
+    }
+
+    @Override
+    public byte[] readAllBytes(Path path) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.readAllBytes")) {
+            return EscalatedFS.readAllBytes(path);
+        }
+    }
+
+    @Override
+    public void deleteIfExists(Path path) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.deleteIfExists")) {
+            EscalatedFS.deleteIfExists(path);
+        }
+    }
+
+    @Override
+    public boolean exists(Path path) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.exists")) {
+            return EscalatedFS.exists(path);
+        }
+    }
+
+    @Override
+    public long size(Path path) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.size")) {
+            return EscalatedFS.size(path);
+        }
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.copy")) {
+            EscalatedFS.copy(source, target, options);
+        }
+    }
+
+    @Override
+    public void move(Path source, Path target) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.move")) {
+            EscalatedFS.move(source, target);
+        }
+    }
+
+    @Override
+    public void install(Path source, Path target) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.install")) {
+            EscalatedFS.install(source, target);
+        }
+    }
+
+    @Override
+    public Stream<Path> walk(Path start) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.walk")) {
+            return EscalatedFS.walk(start);
+        }
+    }
+
+    @Override
+    public Stream<FileEntry> list(Path start) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.list")) {
+            return EscalatedFS.list(start);
+        }
+    }
+
+    @Override
+    public long usableSpace(Path path) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.usableSpace")) {
+            return EscalatedFS.usableSpace(path);
+        }
+    }
+
+    @Override
+    public long crc32(Path path) throws IOException {
+        try (Span ignored = Metrics.timer("escalated.crc32")) {
+            return EscalatedFS.crc32(path);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.asfu222.bajpdl.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Wire formats for escalated directory listings.
+ * <p>
+ * Shizuku sends binary frames: a type byte ({@code 'f'} file, {@code 'd'} directory), size and
+ * mtime as longs, then the path as a length-prefixed UTF-8 string. The listing ends with an
+ * {@code 'e'} frame, or an {@code 'x'} frame carrying an error message, so a cut-off stream is
+ * never mistaken for a complete one.
+ * <p>
+ * Root sends what {@link #FIND_FORMAT} makes find print: {@code "<type> <size> <mtime> <path>"}
+ * records ended by NUL, which unlike a newline cannot appear in a file name.
+ */
+public final class FileListing {
+    static final String FIND_FORMAT = "%y %s %T@ %p\\0";
+
+    private static final int TYPE_FILE = 'f';
+    private static final int TYPE_DIRECTORY = 'd';
+    private static final int TYPE_END = 'e';
+    private static final int TYPE_ERROR = 'x';
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private FileListing() {
+    }
+
+    public static void writeEntry(DataOutputStream out, String path, boolean directory, long size, long lastModified) throws IOException {
+        out.writeByte(directory ? TYPE_DIRECTORY : TYPE_FILE);
+        out.writeLong(size);
+        out.writeLong(lastModified);
+        out.writeUTF(path);
+    }
+
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeByte(TYPE_END);
+    }
+
+    public static void writeError(DataOutputStream out, String message) throws IOException {
+        out.writeByte(TYPE_ERROR);
+        out.writeUTF(message);
+    }
+
+    /**
+     * Reads Shizuku frames lazily. The stream throws {@link UncheckedIOException} if the service
+     * reported an error or the pipe ended early; closing it closes in.
+     */
+    public static Stream<FileEntry> readFrames(InputStream in) {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        return stream(new Reader(in) {
+            @Override
+            FileEntry readNext() throws IOException {
+                int type;
+                try {
+                    type = data.readUnsignedByte();
+                } catch (EOFException e) {
+                    throw new IOException("目录列表不完整");
+                }
+                switch (type) {
+                    case TYPE_END:
+                        return null;
+                    case TYPE_ERROR:
+                        throw new IOException("Shizuku 列出文件夹时报错: " + data.readUTF());
+                    case TYPE_FILE:
+                    case TYPE_DIRECTORY:
+                        long size = data.readLong();
+                        long lastModified = data.readLong();
+                        return new FileEntry(Paths.get(data.readUTF()), type == TYPE_DIRECTORY, size, lastModified);
+                    default:
+                        throw new IOException("无法识别的目录列表格式: " + type);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads NUL-terminated find records lazily; closing the stream closes in. Records of other
+     * types (links, sockets) are skipped, as are fields find could not fill in.
+     */
+    public static Stream<FileEntry> readFind(InputStream in) {
+        BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        return stream(new Reader(in) {
+            @Override
+            FileEntry readNext() throws IOException {
+                while (true) {
+                    record.reset();
+                    int b;
+                    while ((b = buffered.read()) > 0) {
+                        record.write(b);
+                    }
+                    if (b == -1 && record.size() == 0) {
+                        return null;
+                    }
+                    FileEntry entry = parseFind(new String(record.toByteArray(), StandardCharsets.UTF_8));
+                    if (entry != null) {
+                        return entry;
+                    }
+                }
+            }
+        });
+    }
+
+    private static FileEntry parseFind(String record) throws IOException {
+        // The path is last, so it may contain spaces
+        String[] fields = record.split(" ", 4);
+        if (fields.length < 4) {
+            throw new IOException("无法识别的目录列表格式: " + record);
+        }
+        boolean directory = fields[0].equals("d");
+        if (!directory && !fields[0].equals("f")) {
+            return null;
+        }
+        return new FileEntry(Paths.get(fields[3]), directory, parseLong(fields[1]), parseMillis(fields[2]));
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return FileEntry.UNKNOWN;
+        }
+    }
+
+    private static long parseMillis(String seconds) {
+        try {
+            return (long) (Double.parseDouble(seconds) * 1000);
+        } catch (NumberFormatException e) {
+            return FileEntry.UNKNOWN;
+        }
+    }
+
+    private static Stream<FileEntry> stream(Reader reader) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(reader,
+                        Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(reader::close);
+    }
+
+    private abstract static class Reader implements Iterator<FileEntry> {
+        private final InputStream in;
+        private FileEntry next;
+        private boolean done;
+
+        Reader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * @return the next entry, or null at the end of the listing
+         */
+        abstract FileEntry readNext() throws IOException;
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                try {
+                    next = readNext();
+                } catch (IOException e) {
+                    done = true;
+                    throw new UncheckedIOException(e);
+                }
+                done = next == null;
+            }
+            return next != null;
+        }
+
+        @Override
+        public FileEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            FileEntry entry = next;
+            next = null;
+            return entry;
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.asfu222.bajpdl.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared threads for pumping process pipes, instead of starting a thread per stream. Every worker
+ * reuses one 64 KB buffer for all the copies it runs. Only the Shizuku service's fallback for
+ * processes whose pipes cannot be handed over directly copies anything; stderr is never pumped,
+ * see {@link #readErrors}.
+ */
+public final class TransferService {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Enough for an error message; the rest of stderr is read and dropped
+    private static final int MAX_ERROR_BYTES = 4096;
+
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    // At most 5 downloads run at once (AppConfig caps concurrentDownloads), each stream takes a copy
+    // for its data and one for its stderr, which leaves room for a listing and a few short commands
+    private static final int MAX_COPIES = 16;
+
+    // A copy can depend on another (stdout only ends once stdin has), so none waits in a queue for
+    // a worker: past MAX_COPIES a new one is refused, and its stream fails to open instead of
+    // stalling the running ones. Idle workers are kept for 30 s and reused
+    private static final ThreadPoolExecutor copiers = new ThreadPoolExecutor(MAX_COPIES, MAX_COPIES, 30, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), daemonThreads("pipe-copy"));
+
+    static {
+        copiers.allowCoreThreadTimeOut(true);
+    }
+
+    private TransferService() {
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger ids = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Copies in to out until end of stream, flushing after every read, then closes both.
+     *
+     * @throws IOException if MAX_COPIES copies are running already; in and out are left open
+     */
+    public static void copy(InputStream in, OutputStream out) throws IOException {
+        execute(() -> {
+            byte[] buffer = buffers.get();
+            int len;
+            try {
+                while ((len = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, len);
+                    out.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closeQuietly(in);
+                closeQuietly(out);
+            }
+        });
+    }
+
+    /**
+     * Runs writer against out on a copy thread, then closes out. For pipes whose content is
+     * generated rather than copied, e.g. a directory listing.
+     *
+     * @throws IOException if MAX_COPIES copies are running already; out is left open
+     */
+    public static void produce(OutputStream out, Writer writer) throws IOException {
+        execute(() -> {
+            try {
+                writer.writeTo(out);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                closeQuietly(out);
+            }
+        });
+    }
+
+    public interface Writer {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static void execute(Runnable copy) throws IOException {
+        try {
+            copiers.execute(copy);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Too many pipes open at once (" + MAX_COPIES + ")", e);
+        }
+    }
+
+    /**
+     * Reads a process's stderr to the end on the calling thread, then closes it. Meant for once the
+     * process is done with its other streams: the commands run here write at most a line or two
+     * to stderr, far less than a pipe holds, so they never block on it while it is unread.
+     *
+     * @return the start of what was read, for error messages
+     */
+    public static String readErrors(InputStream in) {
+        byte[] buffer = new byte[MAX_ERROR_BYTES];
+        ByteArrayOutputStream kept = new ByteArrayOutputStream();
+        int len;
+        try {
+            while ((len = in.read(buffer)) != -1) {
+                kept.write(buffer, 0, Math.min(len, MAX_ERROR_BYTES - kept.size()));
+            }
+        } catch (IOException ignored) {
+            // Whatever was read still makes a message
+        } finally {
+            closeQuietly(in);
+        }
+        return new String(kept.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
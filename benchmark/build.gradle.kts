@@ -0,0 +1,22 @@
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+application {
+    mainClass.set("com.asfu222.bajpdl.benchmark.SyncBenchmark")
+    applicationDefaultJvmArgs = listOf("-Xmx1g")
+}
+
+dependencies {
+    implementation(project(":engine"))
+    implementation(libs.mockwebserver)
+}
@@ -0,0 +1,277 @@
+package com.asfu222.bajpdl.benchmark;
+
+import com.asfu222.bajpdl.service.PackFormat;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * A local stand-in for both a custom mirror ({@code /mirror}) and the official fallback server
+ * ({@code /fallback}), serving a {@link SyntheticCatalog} with configurable latency, bandwidth,
+ * error rate and Range handling. The mirror also answers {@code POST /mirror/pack} with a
+ * {@link PackFormat} pack, as the reference for mirrors that want to serve small files in batches.
+ * With a part size set, both publish split entries as parts: a {@code <file>.parts} manifest and
+ * the parts {@code <file>.000}, {@code <file>.001}, ...
+ */
+public class MirrorServer implements Closeable {
+    public enum RangeMode {
+        /** Answer Range requests with 206 and the requested slice. */
+        HONOR,
+        /** Ignore the Range header and send the whole file with 200. */
+        IGNORE,
+        /** Refuse Range requests with 416. */
+        REJECT
+    }
+
+    public static class Options {
+        public long latencyMillis = 0;
+        public long bytesPerSecond = 0; // per response, 0 = unlimited
+        public double errorRate = 0;
+        public RangeMode rangeMode = RangeMode.HONOR;
+        /** Answer pack requests; otherwise they get 404 like on a mirror without the endpoint. */
+        public boolean servePacks = true;
+        /** Publish split entries in parts of this size; 0 serves them only whole. */
+        public long partSize = 0;
+    }
+
+    private final SyntheticCatalog catalog;
+    private final Options options;
+    private final MockWebServer server = new MockWebServer();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    // Part manifests by entry path, built on first request since they need the CRC of every part
+    private final Map<String, byte[]> manifests = new ConcurrentHashMap<>();
+
+    public MirrorServer(SyntheticCatalog catalog, Options options) {
+        this.catalog = catalog;
+        this.options = options;
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return serve(request);
+            }
+        });
+    }
+
+    public void start() throws IOException {
+        server.start();
+    }
+
+    public String getMirrorUrl() {
+        return trimSlash(server.url("/mirror").toString());
+    }
+
+    public String getFallbackUrl() {
+        return trimSlash(server.url("/fallback").toString());
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public long getBytesServed() {
+        return bytesServed.get();
+    }
+
+    private MockResponse serve(RecordedRequest request) {
+        requests.incrementAndGet();
+        String path = request.getRequestUrl() != null ? request.getRequestUrl().encodedPath() : "";
+        String relPath;
+        if (path.startsWith("/mirror/")) {
+            relPath = path.substring("/mirror/".length());
+            if (relPath.equals("catalog.json")) {
+                return withOptions(new MockResponse().setBody(new Buffer().write(catalog.getMirrorIndex())));
+            }
+            if (("/" + relPath).equals(PackFormat.ENDPOINT) && "POST".equals(request.getMethod())) {
+                return options.servePacks ? servePack(request) : new MockResponse().setResponseCode(404);
+            }
+        } else if (path.startsWith("/fallback/")) {
+            relPath = path.substring("/fallback/".length());
+        } else {
+            return new MockResponse().setResponseCode(404);
+        }
+
+        byte[] staticFile = catalog.getStaticFile(relPath);
+        if (staticFile != null) {
+            bytesServed.addAndGet(staticFile.length);
+            return withOptions(new MockResponse().setBody(new Buffer().write(staticFile)));
+        }
+
+        if (options.partSize > 0 && relPath.endsWith(".parts")) {
+            return serveManifest(relPath.substring(0, relPath.length() - ".parts".length()));
+        }
+        SyntheticCatalog.Entry entry = catalog.find(relPath);
+        long offset = 0;
+        long size = entry != null ? entry.size : 0;
+        if (entry == null && options.partSize > 0) {
+            // A part: the entry's path plus a three digit index
+            int dot = relPath.lastIndexOf('.');
+            SyntheticCatalog.Entry whole = dot > 0 ? catalog.find(relPath.substring(0, dot)) : null;
+            if (whole != null && whole.split && relPath.substring(dot + 1).matches("\\d{3}")) {
+                offset = Integer.parseInt(relPath.substring(dot + 1)) * options.partSize;
+                if (offset < whole.size) {
+                    entry = whole;
+                    size = Math.min(options.partSize, whole.size - offset);
+                }
+            }
+        }
+        if (entry == null) {
+            return new MockResponse().setResponseCode(404);
+        }
+        if (options.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < options.errorRate) {
+            injectedErrors.incrementAndGet();
+            return withOptions(new MockResponse().setResponseCode(503));
+        }
+
+        long start = 0;
+        long end = size - 1;
+        int code = 200;
+        String range = request.getHeader("Range");
+        if (range != null && options.rangeMode != RangeMode.IGNORE) {
+            if (options.rangeMode == RangeMode.REJECT) {
+                return withOptions(new MockResponse().setResponseCode(416));
+            }
+            long[] parsed = parseRange(range, size);
+            if (parsed == null) {
+                return withOptions(new MockResponse().setResponseCode(416)
+                        .setHeader("Content-Range", "bytes */" + size));
+            }
+            start = parsed[0];
+            end = parsed[1];
+            code = 206;
+        }
+
+        Buffer body = new Buffer();
+        byte[] chunk = new byte[64 * 1024];
+        for (long position = start; position <= end; position += chunk.length) {
+            int len = (int) Math.min(chunk.length, end + 1 - position);
+            SyntheticCatalog.fill(entry.seed, offset + position, chunk, len);
+            body.write(chunk, 0, len);
+        }
+        bytesServed.addAndGet(end + 1 - start);
+        MockResponse response = new MockResponse().setResponseCode(code).setBody(body)
+                .setHeader("Accept-Ranges", options.rangeMode == RangeMode.HONOR ? "bytes" : "none");
+        if (code == 206) {
+            response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+        return withOptions(response);
+    }
+
+    private MockResponse serveManifest(String relPath) {
+        SyntheticCatalog.Entry entry = catalog.find(relPath);
+        if (entry == null || !entry.split) {
+            return new MockResponse().setResponseCode(404);
+        }
+        byte[] manifest = manifests.computeIfAbsent(relPath, k -> {
+            JSONArray parts = new JSONArray();
+            for (int i = 0; (long) i * options.partSize < entry.size; i++) {
+                long offset = i * options.partSize;
+                long size = Math.min(options.partSize, entry.size - offset);
+                parts.put(new JSONObject()
+                        .put("name", entry.name + String.format(".%03d", i))
+                        .put("size", size)
+                        .put("crc", SyntheticCatalog.contentCrc(entry.seed, offset, size)));
+            }
+            return parts.toString().getBytes(StandardCharsets.UTF_8);
+        });
+        return withOptions(new MockResponse().setBody(new Buffer().write(manifest)));
+    }
+
+    /**
+     * Packs every listed path this server has, in the order asked for.
+     */
+    private MockResponse servePack(RecordedRequest request) {
+        if (options.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < options.errorRate) {
+            injectedErrors.incrementAndGet();
+            return withOptions(new MockResponse().setResponseCode(503));
+        }
+        Buffer body = new Buffer();
+        try (DataOutputStream out = new DataOutputStream(body.outputStream())) {
+            byte[] chunk = new byte[64 * 1024];
+            for (String relPath : request.getBody().readUtf8().split("\n")) {
+                SyntheticCatalog.Entry entry = catalog.find(relPath);
+                if (entry == null) {
+                    continue;
+                }
+                PackFormat.writeHeader(out, relPath, entry.size);
+                for (long offset = 0; offset < entry.size; offset += chunk.length) {
+                    int len = (int) Math.min(chunk.length, entry.size - offset);
+                    SyntheticCatalog.fill(entry.seed, offset, chunk, len);
+                    out.write(chunk, 0, len);
+                }
+                bytesServed.addAndGet(entry.size);
+            }
+            PackFormat.writeEnd(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return withOptions(new MockResponse().setBody(body));
+    }
+
+    private MockResponse withOptions(MockResponse response) {
+        if (options.latencyMillis > 0) {
+            response.setHeadersDelay(options.latencyMillis, TimeUnit.MILLISECONDS);
+        }
+        if (options.bytesPerSecond > 0) {
+            // Ten slices a second keeps the throttle smooth without a sleep per byte
+            response.throttleBody(Math.max(options.bytesPerSecond / 10, 1), 100, TimeUnit.MILLISECONDS);
+        }
+        return response;
+    }
+
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+        String[] bounds = header.substring("bytes=".length()).trim().split("-", 2);
+        try {
+            long start;
+            long end;
+            if (bounds[0].isEmpty()) {
+                long suffix = Long.parseLong(bounds[1]);
+                start = Math.max(size - suffix, 0);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(bounds[0]);
+                end = bounds[1].isEmpty() ? size - 1 : Math.min(Long.parseLong(bounds[1]), size - 1);
+            }
+            if (start > end || start >= size) {
+                return null;
+            }
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String trimSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+}
@@ -0,0 +1,92 @@
+package com.asfu222.bajpdl.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * A weighted mix of size ranges, written as {@code weight:min-max,...} with K/M/G suffixes,
+ * e.g. {@code 70:1K-32K,25:32K-512K,5:1M-8M}. Sizes are log-uniform inside each range.
+ */
+public class SizeDistribution {
+    public static final String DEFAULT = "70:1K-32K,25:32K-512K,5:1M-8M";
+
+    private static class Bucket {
+        final int weight;
+        final long min;
+        final long max;
+
+        Bucket(int weight, long min, long max) {
+            this.weight = weight;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    private final List<Bucket> buckets;
+    private final int totalWeight;
+    private final String spec;
+
+    private SizeDistribution(List<Bucket> buckets, String spec) {
+        this.buckets = buckets;
+        this.spec = spec;
+        int total = 0;
+        for (Bucket bucket : buckets) {
+            total += bucket.weight;
+        }
+        this.totalWeight = total;
+    }
+
+    public static SizeDistribution parse(String spec) {
+        List<Bucket> buckets = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] weightAndRange = part.trim().split(":");
+            String[] range = weightAndRange[1].split("-");
+            long min = parseSize(range[0]);
+            long max = parseSize(range[1]);
+            if (min <= 0 || max < min) {
+                throw new IllegalArgumentException("Invalid size range: " + part);
+            }
+            buckets.add(new Bucket(Integer.parseInt(weightAndRange[0]), min, max));
+        }
+        if (buckets.isEmpty()) {
+            throw new IllegalArgumentException("Empty size distribution");
+        }
+        return new SizeDistribution(buckets, spec);
+    }
+
+    public static long parseSize(String value) {
+        String v = value.trim().toUpperCase(Locale.ROOT);
+        long multiplier = 1;
+        if (v.endsWith("K")) {
+            multiplier = 1024;
+        } else if (v.endsWith("M")) {
+            multiplier = 1024 * 1024;
+        } else if (v.endsWith("G")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            v = v.substring(0, v.length() - 1);
+        }
+        return (long) (Double.parseDouble(v) * multiplier);
+    }
+
+    public long next(SplittableRandom random) {
+        int pick = random.nextInt(totalWeight);
+        for (Bucket bucket : buckets) {
+            pick -= bucket.weight;
+            if (pick < 0) {
+                double logMin = Math.log(bucket.min);
+                double logMax = Math.log(bucket.max);
+                return Math.max(1, (long) Math.exp(logMin + random.nextDouble() * (logMax - logMin)));
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
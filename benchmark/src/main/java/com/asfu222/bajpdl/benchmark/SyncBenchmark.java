@@ -0,0 +1,345 @@
+package com.asfu222.bajpdl.benchmark;
+
+import com.asfu222.bajpdl.config.AppCache;
+import com.asfu222.bajpdl.config.AppConfig;
+import com.asfu222.bajpdl.core.DownloadListener;
+import com.asfu222.bajpdl.core.GameFileManager;
+import com.asfu222.bajpdl.util.FileUtils;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * End-to-end throughput benchmark: runs a full {@link GameFileManager#startDownloads()} sync
+ * against a local {@link MirrorServer} and reports files/s, MB/s, per-file latency and peak heap.
+ * With {@code --baseline} it exits non-zero when a run is worse than the baseline by more than
+ * {@code --tolerance}.
+ */
+public class SyncBenchmark {
+    private static final double BYTES_TO_MB = 1024.0 * 1024.0;
+
+    static class Settings {
+        int files = 2000;
+        String sizes = SizeDistribution.DEFAULT;
+        long seed = 42;
+        int concurrency = 5;
+        int runs = 3;
+        int warmupRuns = 1;
+        MirrorServer.Options server = new MirrorServer.Options();
+        Path out;
+        Path baseline;
+        double tolerance = 0.15;
+        boolean metrics;
+    }
+
+    static class RunResult {
+        int files;
+        int failures;
+        long bytes;
+        double seconds;
+        double p50Millis;
+        double p99Millis;
+        double peakHeapMB;
+        long requests;
+        long injectedErrors;
+
+        double filesPerSecond() {
+            return files / seconds;
+        }
+
+        double mbPerSecond() {
+            return bytes / BYTES_TO_MB / seconds;
+        }
+
+        JSONObject toJson() {
+            return new JSONObject()
+                    .put("files", files)
+                    .put("failures", failures)
+                    .put("bytes", bytes)
+                    .put("seconds", seconds)
+                    .put("filesPerSecond", filesPerSecond())
+                    .put("mbPerSecond", mbPerSecond())
+                    .put("p50Millis", p50Millis)
+                    .put("p99Millis", p99Millis)
+                    .put("peakHeapMB", peakHeapMB)
+                    .put("requests", requests)
+                    .put("injectedErrors", injectedErrors);
+        }
+    }
+
+    private static class LatencyRecorder implements DownloadListener {
+        private final SyntheticCatalog catalog;
+        private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        private int failures;
+
+        LatencyRecorder(SyntheticCatalog catalog) {
+            this.catalog = catalog;
+        }
+
+        synchronized int getFailures() {
+            return failures;
+        }
+
+        @Override
+        public void updateConsole(String message) {
+        }
+
+        @Override
+        public void logErrorToConsole(String message, Throwable ex) {
+            System.err.println(message + ": " + ex);
+        }
+
+        @Override
+        public void updateProgress(int downloadedFiles, int totalFiles, long downloadedMB, long totalMB) {
+        }
+
+        @Override
+        public void onFileDownloaded(String relPath, boolean success, long elapsedNanos) {
+            if (catalog.find(relPath) == null) {
+                return; // catalogs and hash files
+            }
+            if (success) {
+                latencies.add(elapsedNanos);
+            } else {
+                synchronized (this) {
+                    failures++;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = parseArgs(args);
+        System.out.printf("Generating %d files (%s)...%n", settings.files, settings.sizes);
+        SyntheticCatalog catalog = SyntheticCatalog.generate(settings.files, SizeDistribution.parse(settings.sizes), settings.seed);
+        System.out.printf("Catalog: %d files, %.1f MB%n", catalog.getEntries().size(), catalog.getTotalSize() / BYTES_TO_MB);
+
+        List<RunResult> results = new ArrayList<>();
+        try (MirrorServer server = new MirrorServer(catalog, settings.server)) {
+            server.start();
+            for (int run = 0; run < settings.warmupRuns + settings.runs; run++) {
+                boolean warmup = run < settings.warmupRuns;
+                long requestsBefore = server.getRequests();
+                long errorsBefore = server.getInjectedErrors();
+                RunResult result = runOnce(catalog, server, settings);
+                result.requests = server.getRequests() - requestsBefore;
+                result.injectedErrors = server.getInjectedErrors() - errorsBefore;
+                System.out.printf("%s %d: %.1f files/s, %.1f MB/s, p50 %.1f ms, p99 %.1f ms, peak heap %.1f MB, %d failures, %d requests%n",
+                        warmup ? "Warmup" : "Run", warmup ? run + 1 : run - settings.warmupRuns + 1,
+                        result.filesPerSecond(), result.mbPerSecond(), result.p50Millis, result.p99Millis,
+                        result.peakHeapMB, result.failures, result.requests);
+                if (!warmup) {
+                    results.add(result);
+                }
+            }
+        }
+
+        RunResult median = median(results);
+        JSONObject report = new JSONObject()
+                .put("settings", new JSONObject()
+                        .put("files", settings.files)
+                        .put("sizes", settings.sizes)
+                        .put("seed", settings.seed)
+                        .put("concurrency", settings.concurrency)
+                        .put("latencyMillis", settings.server.latencyMillis)
+                        .put("bytesPerSecond", settings.server.bytesPerSecond)
+                        .put("errorRate", settings.server.errorRate)
+                        .put("rangeMode", settings.server.rangeMode.name())
+                        .put("metrics", settings.metrics))
+                .put("median", median.toJson());
+        JSONArray runs = new JSONArray();
+        for (RunResult result : results) {
+            runs.put(result.toJson());
+        }
+        report.put("runs", runs);
+        System.out.println(report.toString(2));
+        if (settings.out != null) {
+            Files.write(settings.out, report.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+
+        int exitCode = median.failures > 0 ? 1 : 0;
+        if (settings.baseline != null) {
+            JSONObject baseline = new JSONObject(new String(Files.readAllBytes(settings.baseline), StandardCharsets.UTF_8)).getJSONObject("median");
+            List<String> regressions = compare(baseline, median.toJson(), settings.tolerance);
+            for (String regression : regressions) {
+                System.out.println("REGRESSION: " + regression);
+            }
+            if (!regressions.isEmpty()) {
+                exitCode = 3;
+            }
+        }
+        System.exit(exitCode);
+    }
+
+    static RunResult runOnce(SyntheticCatalog catalog, MirrorServer server, Settings settings) throws IOException {
+        Path workDir = Files.createTempDirectory("bajpdl-bench");
+        try {
+            FileUtils.setGameRoot(workDir.resolve("game"));
+            AppConfig appConfig = new AppConfig(workDir.resolve("cfg"), server.getFallbackUrl());
+            appConfig.setServerUrls(Collections.singletonList(server.getMirrorUrl()));
+            appConfig.setConcurrentDownloads(settings.concurrency);
+            appConfig.setDownloadCustomOnly(true);
+            appConfig.setAlwaysRedownload(false);
+            appConfig.setRecordMetrics(settings.metrics);
+
+            LatencyRecorder recorder = new LatencyRecorder(catalog);
+            GameFileManager gameFileManager = new GameFileManager(appConfig, new AppCache(workDir.resolve("cache")),
+                    workDir.resolve("data"), workDir.resolve("cache"), recorder);
+
+            System.gc();
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                    heapPools.add(pool);
+                }
+            }
+
+            long start = System.nanoTime();
+            try {
+                gameFileManager.startDownloads().join();
+            } finally {
+                gameFileManager.shutdown();
+            }
+            RunResult result = new RunResult();
+            result.seconds = (System.nanoTime() - start) / 1e9;
+
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : heapPools) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+            result.peakHeapMB = peakHeap / BYTES_TO_MB;
+
+            List<Long> latencies = new ArrayList<>(recorder.latencies);
+            Collections.sort(latencies);
+            result.files = latencies.size();
+            // Files that never reported back (e.g. the sync aborted) count as failures too
+            result.failures = Math.max(recorder.getFailures(),catalog.getEntries().size() - latencies.size());
+            result.p50Millis = percentile(latencies, 0.50) / 1e6;
+            result.p99Millis = percentile(latencies, 0.99) / 1e6;
+            result.bytes = catalog.getTotalSize();
+            return result;
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+
+    static List<String> compare(JSONObject baseline, JSONObject current, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        for (String key : Arrays.asList("filesPerSecond", "mbPerSecond")) {
+            double before = baseline.getDouble(key);
+            double now = current.getDouble(key);
+            if (now < before * (1 - tolerance)) {
+                regressions.add(String.format("%s %.2f < baseline %.2f", key, now, before));
+            }
+        }
+        for (String key : Arrays.asList("p50Millis", "p99Millis", "peakHeapMB")) {
+            double before = baseline.getDouble(key);
+            double now = current.getDouble(key);
+            if (now > before * (1 + tolerance)) {
+                regressions.add(String.format("%s %.2f > baseline %.2f", key, now, before));
+            }
+        }
+        return regressions;
+    }
+
+    private static RunResult median(List<RunResult> results) {
+        List<RunResult> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingDouble(RunResult::mbPerSecond));
+        return sorted.get(sorted.size() / 2);
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    static Settings parseArgs(String[] args) {
+        Settings settings = new Settings();
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--files":
+                    settings.files = Integer.parseInt(value);
+                    break;
+                case "--sizes":
+                    settings.sizes = value;
+                    break;
+                case "--seed":
+                    settings.seed = Long.parseLong(value);
+                    break;
+                case "--concurrency":
+                    settings.concurrency = Integer.parseInt(value);
+                    break;
+                case "--runs":
+                    settings.runs = Math.max(Integer.parseInt(value), 1);
+                    break;
+                case "--warmup":
+                    settings.warmupRuns = Integer.parseInt(value);
+                    break;
+                case "--latency":
+                    settings.server.latencyMillis = Long.parseLong(value);
+                    break;
+                case "--bandwidth":
+                    settings.server.bytesPerSecond = SizeDistribution.parseSize(value);
+                    break;
+                case "--error-rate":
+                    settings.server.errorRate = Double.parseDouble(value);
+                    break;
+                case "--range":
+                    settings.server.rangeMode = MirrorServer.RangeMode.valueOf(value.toUpperCase());
+                    break;
+                case "--pack":
+                    settings.server.servePacks = value.equals("on");
+                    break;
+                case "--parts":
+                    settings.server.partSize = SizeDistribution.parseSize(value);
+                    break;
+                case "--out":
+                    settings.out = Paths.get(value);
+                    break;
+                case "--baseline":
+                    settings.baseline = Paths.get(value);
+                    break;
+                case "--tolerance":
+                    settings.tolerance = Double.parseDouble(value);
+                    break;
+                case "--metrics":
+                    settings.metrics = true;
+                    continue;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    System.err.println("Usage: SyncBenchmark [--files n] [--sizes spec] [--seed n] [--concurrency n]"
+                            + " [--runs n] [--warmup n] [--latency ms] [--bandwidth bytesPerSecond]"
+                            + " [--error-rate p] [--range honor|ignore|reject] [--pack on|off] [--parts size] [--out file] [--baseline file] [--tolerance f] [--metrics]");
+                    System.exit(2);
+            }
+            i++;
+        }
+        return settings;
+    }
+}
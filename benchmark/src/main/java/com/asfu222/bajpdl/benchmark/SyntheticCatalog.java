@@ -0,0 +1,303 @@
+package com.asfu222.bajpdl.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.zip.CRC32;
+
+/**
+ * A generated set of game files plus the three catalogs describing them, in the same formats
+ * {@link com.asfu222.bajpdl.service.MXCatalog} parses. File contents are derived from a seed and
+ * regenerated on demand, so thousands of files cost no memory.
+ */
+public class SyntheticCatalog {
+    public static final String TABLE_CATALOG = "TableBundles/TableCatalog.bytes";
+    public static final String MEDIA_CATALOG = "MediaResources/Catalog/MediaCatalog.bytes";
+    public static final String BUNDLE_CATALOG = "Android/bundleDownloadInfo.json";
+    /** Entries at least this large are marked as split downloads, like the game's largest assets. */
+    public static final long SPLIT_SIZE = 4L * 1024 * 1024;
+
+    public enum Kind {
+        TABLE,
+        MEDIA,
+        BUNDLE
+    }
+
+    public static class Entry {
+        public final String relPath;
+        public final String name;
+        public final Kind kind;
+        public final long size;
+        public final long seed;
+        public final long crc;
+        public final boolean split;
+        public final List<String> includes;
+
+        Entry(String relPath, String name, Kind kind, long size, long seed, List<String> includes, boolean withContent) {
+            this.relPath = relPath;
+            this.name = name;
+            this.kind = kind;
+            this.size = size;
+            this.seed = seed;
+            this.includes = includes;
+            this.split = size >= SPLIT_SIZE;
+            this.crc = withContent ? contentCrc(seed, 0, size) : mix(seed) & 0xffffffffL;
+        }
+    }
+
+    private final List<Entry> entries;
+    private final Map<String, Entry> byPath = new LinkedHashMap<>();
+    private final Map<String, byte[]> staticFiles = new LinkedHashMap<>();
+
+    private SyntheticCatalog(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+        for (Entry entry : entries) {
+            byPath.put(entry.relPath, entry);
+        }
+        staticFiles.put(TABLE_CATALOG, writeTableCatalog(entries));
+        staticFiles.put(MEDIA_CATALOG, writeMediaCatalog(entries));
+        staticFiles.put(BUNDLE_CATALOG, writeBundleCatalog(entries));
+        staticFiles.put("TableBundles/TableCatalog.hash", hashFile(staticFiles.get(TABLE_CATALOG)));
+        staticFiles.put("MediaResources/Catalog/MediaCatalog.hash", hashFile(staticFiles.get(MEDIA_CATALOG)));
+        staticFiles.put("Android/bundleDownloadInfo.hash", hashFile(staticFiles.get(BUNDLE_CATALOG)));
+    }
+
+    /**
+     * Generates {@code fileCount} files: 60% media, 30% asset bundles and 10% table bundles, with
+     * sizes drawn from {@code sizes}.
+     */
+    public static SyntheticCatalog generate(int fileCount, SizeDistribution sizes, long seed) {
+        int tables = Math.max(fileCount / 10, 1);
+        int bundles = Math.max(fileCount * 3 / 10, 1);
+        int media = Math.max(fileCount - tables - bundles, 1);
+        return generate(tables, bundles, media, sizes, seed, true);
+    }
+
+    /**
+     * Generates the given number of entries per catalog. Without {@code withContent} the CRCs are
+     * random instead of computed from the file contents, which is enough for catalog-only work and
+     * avoids generating gigabytes of data for large catalogs.
+     */
+    public static SyntheticCatalog generate(int tables, int bundles, int media, SizeDistribution sizes, long seed, boolean withContent) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<Entry> entries = new ArrayList<>(tables + bundles + media);
+        for (int i = 0; i < tables; i++) {
+            String name = String.format("table_%05d.zip", i);
+            List<String> includes = new ArrayList<>();
+            // A few tables pull in earlier ones, like the real TableCatalog
+            if (i > 0 && random.nextInt(4) == 0) {
+                includes.add(String.format("table_%05d.zip", random.nextInt(i)));
+            }
+            entries.add(new Entry("TableBundles/" + name, name, Kind.TABLE, sizes.next(random), random.nextLong(), includes, withContent));
+        }
+        for (int i = 0; i < bundles; i++) {
+            String name = String.format("assets-%05d_%08x.bundle", i, random.nextInt());
+            entries.add(new Entry("Android/" + name, name, Kind.BUNDLE, sizes.next(random), random.nextLong(), Collections.emptyList(), withContent));
+        }
+        for (int i = 0; i < media; i++) {
+            String name = String.format("voice_%05d.ogg", i);
+            String path = "Audio/VOC_JP/" + (i % 32) + "/" + name;
+            entries.add(new Entry("MediaResources/" + path, name, Kind.MEDIA, sizes.next(random), random.nextLong(), Collections.emptyList(), withContent));
+        }
+        return new SyntheticCatalog(entries);
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public Entry find(String relPath) {
+        return byPath.get(relPath);
+    }
+
+    public byte[] getStaticFile(String relPath) {
+        return staticFiles.get(relPath);
+    }
+
+    public long getTotalSize() {
+        long total = 0;
+        for (Entry entry : entries) {
+            total += entry.size;
+        }
+        return total;
+    }
+
+    /**
+     * The mirror's catalog.json: every path it can serve, catalogs included.
+     */
+    public byte[] getMirrorIndex() {
+        JSONArray paths = new JSONArray();
+        for (String path : staticFiles.keySet()) {
+            paths.put(path);
+        }
+        for (Entry entry : entries) {
+            paths.put(entry.relPath);
+        }
+        return paths.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fills {@code buffer[0, len)} with the file content starting at {@code offset}.
+     */
+    public static void fill(long seed, long offset, byte[] buffer, int len) {
+        for (int i = 0; i < len; ) {
+            long position = offset + i;
+            long word = mix(seed + (position >>> 3));
+            for (int shift = (int) (position & 7); shift < 8 && i < len; shift++, i++) {
+                buffer[i] = (byte) (word >>> (shift * 8));
+            }
+        }
+    }
+
+    /**
+     * CRC32 of the {@code length} bytes of content starting at {@code from}.
+     */
+    public static long contentCrc(long seed, long from, long length) {
+        CRC32 crc32 = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        for (long offset = from; offset < from + length; offset += buffer.length) {
+            int len = (int) Math.min(buffer.length, from + length - offset);
+            fill(seed, offset, buffer, len);
+            crc32.update(buffer, 0, len);
+        }
+        return crc32.getValue();
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static byte[] writeTableCatalog(List<Entry> entries) {
+        PackerWriter writer = new PackerWriter();
+        writer.i8(0);
+        int count = 0;
+        for (Entry entry : entries) {
+            if (entry.kind == Kind.TABLE) count++;
+        }
+        writer.i32(count);
+        for (Entry entry : entries) {
+            if (entry.kind != Kind.TABLE) continue;
+            writer.i32(0);
+            writer.string(entry.name);
+            writer.i8(0);
+            writer.i32(0);
+            writer.string(entry.name);
+            writer.i64(entry.size);
+            writer.i64(entry.crc);
+            writer.bool(true); // isInBuild
+            writer.bool(true); // isChanged
+            writer.bool(false); // isPrologue
+            writer.bool(entry.split); // isSplitDownload
+            if (entry.includes.isEmpty()) {
+                writer.i32(-1);
+            } else {
+                writer.i32(entry.includes.size());
+                writer.i32(0);
+                for (int i = 0; i < entry.includes.size(); i++) {
+                    writer.string(entry.includes.get(i));
+                    if (i != entry.includes.size() - 1) {
+                        writer.i32(0);
+                    }
+                }
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    private static byte[] writeMediaCatalog(List<Entry> entries) {
+        PackerWriter writer = new PackerWriter();
+        writer.i8(0);
+        int count = 0;
+        for (Entry entry : entries) {
+            if (entry.kind == Kind.MEDIA) count++;
+        }
+        writer.i32(count);
+        for (Entry entry : entries) {
+            if (entry.kind != Kind.MEDIA) continue;
+            String path = entry.relPath.substring("MediaResources/".length());
+            writer.i32(0);
+            writer.string(path);
+            writer.i8(0);
+            writer.i32(0);
+            writer.string(path.replace("/", "\\"));
+            writer.i32(0);
+            writer.string(entry.name);
+            writer.i64(entry.size);
+            writer.i64(entry.crc);
+            writer.bool(false); // isPrologue
+            writer.bool(entry.split); // isSplitDownload
+            writer.i32(1); // mediaType
+        }
+        return writer.toByteArray();
+    }
+
+    private static byte[] writeBundleCatalog(List<Entry> entries) {
+        JSONArray bundleFiles = new JSONArray();
+        for (Entry entry : entries) {
+            if (entry.kind != Kind.BUNDLE) continue;
+            JSONObject bundleFile = new JSONObject();
+            bundleFile.put("Name", entry.name);
+            bundleFile.put("Size", entry.size);
+            bundleFile.put("Crc", entry.crc);
+            bundleFile.put("IsSplitDownload", entry.split);
+            bundleFiles.put(bundleFile);
+        }
+        return new JSONObject().put("BundleFiles", bundleFiles).toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] hashFile(byte[] data) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        return (crc32.getValue() + " " + data.length).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the little-endian MemoryPack subset read by MXCatalog.
+     */
+    static class PackerWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+        void i8(int value) {
+            out.write(value);
+        }
+
+        void bool(boolean value) {
+            out.write(value ? 1 : 0);
+        }
+
+        void i32(int value) {
+            scratch.clear();
+            scratch.putInt(value);
+            out.write(scratch.array(), 0, 4);
+        }
+
+        void i64(long value) {
+            scratch.clear();
+            scratch.putLong(value);
+            out.write(scratch.array(), 0, 8);
+        }
+
+        void string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            i32(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+}
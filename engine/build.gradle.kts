@@ -0,0 +1,23 @@
+plugins {
+    `java-library`
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+application {
+    mainClass.set("com.asfu222.bajpdl.cli.MirrorCli")
+}
+
+dependencies {
+    api(libs.okhttp)
+    api(libs.json)
+    implementation(libs.lz4.java)
+}
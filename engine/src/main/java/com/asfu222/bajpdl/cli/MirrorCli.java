@@ -0,0 +1,238 @@
+package com.asfu222.bajpdl.cli;
+
+import com.asfu222.bajpdl.config.AppCache;
+import com.asfu222.bajpdl.config.AppConfig;
+import com.asfu222.bajpdl.core.DownloadListener;
+import com.asfu222.bajpdl.core.GameFileManager;
+import com.asfu222.bajpdl.core.ProgressSnapshot;
+import com.asfu222.bajpdl.core.UpdatePlan;
+import com.asfu222.bajpdl.metrics.Metrics;
+import com.asfu222.bajpdl.metrics.MetricsRegistry;
+import com.asfu222.bajpdl.util.FileUtils;
+
+import java.io.Console;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Mirrors a game data directory on a plain JVM host, e.g. to pre-stage content or profile throughput on a server.
+ *
+ * <pre>
+ * MirrorCli --game &lt;dir&gt; [--work &lt;dir&gt;] [--servers url,url] [--fallback url]
+ *           [--concurrency n] [--rate bytesPerSecond] [--all] [--redownload] [--metrics]
+ *           [--verify | --repair | --tables name,name | --plan]
+ * </pre>
+ *
+ * {@code --verify} only checks the installed files against the catalogs already in the game directory;
+ * {@code --repair} also downloads the missing and corrupt ones. Both exit non-zero if anything is broken.
+ * {@code --tables} updates only the named table bundles and the bundles they include.
+ * {@code --plan} prints what an update would download and how long it should take, without touching
+ * the game directory; on a terminal it then asks whether to go ahead with that plan.
+ *
+ * With {@code --metrics}, spans and counters are appended to {@code <work>/cache/metrics.jsonl} and
+ * a summary is printed at the end.
+ */
+public class MirrorCli implements DownloadListener {
+    private final boolean verbose;
+
+    private MirrorCli(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public static void main(String[] args) {
+        Path gameRoot = null;
+        Path workDir = Paths.get("bajpdl");
+        String servers = null;
+        String fallbackUrl = null;
+        Integer concurrency = null;
+        Long rate = null;
+        boolean all = false;
+        boolean redownload = false;
+        boolean verbose = false;
+        boolean metrics = false;
+        boolean verify = false;
+        boolean repair = false;
+        List<String> tables = null;
+        boolean plan = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--game":
+                    gameRoot = Paths.get(requireValue(args, ++i));
+                    break;
+                case "--work":
+                    workDir = Paths.get(requireValue(args, ++i));
+                    break;
+                case "--servers":
+                    servers = requireValue(args, ++i);
+                    break;
+                case "--fallback":
+                    fallbackUrl = requireValue(args, ++i);
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(requireValue(args, ++i));
+                    break;
+                case "--rate":
+                    rate = Long.parseLong(requireValue(args, ++i));
+                    break;
+                case "--all":
+                    all = true;
+                    break;
+                case "--redownload":
+                    redownload = true;
+                    break;
+                case "--verbose":
+                    verbose = true;
+                    break;
+                case "--metrics":
+                    metrics = true;
+                    break;
+                case "--verify":
+                    verify = true;
+                    break;
+                case "--repair":
+                    verify = true;
+                    repair = true;
+                    break;
+                case "--tables":
+                    tables = new ArrayList<>();
+                    for (String table : requireValue(args, ++i).split(",")) {
+                        tables.add(table.startsWith("TableBundles/") ? table : "TableBundles/" + table);
+                    }
+                    break;
+                case "--plan":
+                    plan = true;
+                    break;
+                default:
+                    usage("Unknown option: " + args[i]);
+            }
+        }
+        if (gameRoot == null) {
+            usage("--game is required");
+        }
+
+        MirrorCli cli = new MirrorCli(verbose);
+        FileUtils.setGameRoot(gameRoot.toAbsolutePath());
+        Path configDir = workDir.resolve("cfg");
+        AppConfig appConfig = fallbackUrl != null
+                ? new AppConfig(configDir, fallbackUrl)
+                : new AppConfig(configDir, cli::logErrorToConsole);
+        if (servers != null) {
+            appConfig.setServerUrls(Arrays.asList(servers.split(",")));
+        }
+        if (concurrency != null) {
+            appConfig.setConcurrentDownloads(Math.max(concurrency, 1));
+        }
+        if (rate != null) {
+            appConfig.setMaxDownloadRate(rate);
+        }
+        appConfig.setDownloadCustomOnly(!all);
+        appConfig.setAlwaysRedownload(redownload);
+        appConfig.setRecordMetrics(metrics);
+        if (fallbackUrl == null && (repair || !verify)) {
+            waitForFallbackUrl(appConfig);
+        }
+
+        GameFileManager gameFileManager = new GameFileManager(appConfig, new AppCache(workDir.resolve("cache")),
+                workDir.resolve("data"), workDir.resolve("cache"), cli);
+        long start = System.nanoTime();
+        boolean success;
+        try {
+            if (verify) {
+                success = gameFileManager.verifyAndRepair(repair).join();
+            } else if (tables != null) {
+                success = gameFileManager.refreshTables(tables).join();
+            } else if (plan) {
+                UpdatePlan updatePlan = gameFileManager.planUpdate().join();
+                success = updatePlan != null;
+                if (success && confirm()) {
+                    success = gameFileManager.execute(updatePlan).join();
+                }
+            } else {
+                success = gameFileManager.startDownloads().join();
+            }
+            MetricsRegistry registry = Metrics.getRegistry();
+            if (registry != null) {
+                System.out.print(registry.formatSummary());
+            }
+        } finally {
+            gameFileManager.shutdown();
+        }
+        System.out.printf("Finished in %.1f s, %s%n", (System.nanoTime() - start) / 1e9, success ? "OK" : "with failures");
+        System.exit(success ? 0 : 1);
+    }
+
+    private static void waitForFallbackUrl(AppConfig appConfig) {
+        // AppConfig looks the fallback server up in the background; give it the same budget as its retries
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (appConfig.getFallbackUrl() == null && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return whether the user answered yes; false when not on a terminal
+     */
+    private static boolean confirm() {
+        Console console = System.console();
+        if (console == null) {
+            return false;
+        }
+        String answer = console.readLine("开始下载？(y/N) ");
+        return answer != null && answer.trim().equalsIgnoreCase("y");
+    }
+
+    private static String requireValue(String[] args, int index) {
+        if (index >= args.length) {
+            usage("Missing value for " + args[index - 1]);
+        }
+        return args[index];
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: MirrorCli --game <dir> [--work <dir>] [--servers url,url] [--fallback url]"
+                + " [--concurrency n] [--rate bytesPerSecond] [--all] [--redownload] [--metrics] [--verify | --repair | --tables name,name | --plan] [--verbose]");
+        System.exit(2);
+    }
+
+    @Override
+    public void updateConsole(String message) {
+        System.out.println(message);
+    }
+
+    @Override
+    public void logErrorToConsole(String message, Throwable ex) {
+        if (verbose) {
+            StringWriter sw = new StringWriter();
+            ex.printStackTrace(new PrintWriter(sw));
+            System.err.println(message + ": " + sw);
+        } else {
+            System.err.println(message + ": " + ex);
+        }
+    }
+
+    @Override
+    public void onProgress(ProgressSnapshot progress) {
+        updateProgress(progress.downloadedFiles, progress.totalFiles, progress.downloadedBytes >> 20, progress.totalBytes >> 20);
+        if (progress.downloadedFiles < progress.totalFiles) {
+            System.out.println(progress.formatThroughput());
+        }
+    }
+
+    @Override
+    public void updateProgress(int downloadedFiles, int totalFiles, long downloadedMB, long totalMB) {
+        int progress = totalMB > 0 ? (int) ((downloadedMB * 100) / totalMB) : 0;
+        System.out.println("进度: " + progress + "% (" + downloadedFiles + "/" + totalFiles + " 文件, " + downloadedMB + "/" + totalMB + " MB)");
+    }
+}
@@ -1,7 +1,5 @@
 package com.asfu222.bajpdl.config;
 
-import android.content.Context;
-
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -9,16 +7,25 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class AppCache {
+    // How much a new run moves a mirror's rate
+    private static final double RATE_WEIGHT = 0.5;
+
     private long tbCrc;
     private long mpCrc;
     private long abCrc;
   //  private String yostarServerUrl;
-    private final Context context;
-    public AppCache(Context context) {
-        this.context = context;
+    // Bytes per second each mirror delivered over whole earlier runs, smoothed
+    private final Map<String, Double> mirrorRates = new ConcurrentHashMap<>();
+    private final Path cacheDir;
+    public AppCache(Path cacheDir) {
+        this.cacheDir = cacheDir;
         loadCache();
     }
     public long getTbCrc() {
@@ -45,6 +52,17 @@ public class AppCache {
         this.abCrc = abCrc;
     }
 
+    /**
+     * @return bytes per second the mirror delivered in earlier runs, or 0 if it was never measured
+     */
+    public double getMirrorRate(String mirror) {
+        return mirrorRates.getOrDefault(mirror, 0.0);
+    }
+
+    public void recordMirrorRate(String mirror, double bytesPerSecond) {
+        mirrorRates.merge(mirror, bytesPerSecond, (old, latest) -> old + RATE_WEIGHT * (latest - old));
+    }
+
     /*
     public String getYostarServerUrl() {
         return yostarServerUrl;
@@ -52,7 +70,7 @@ public class AppCache {
      */
 
     private void loadCache() {
-        File versionFile = new File(context.getExternalFilesDir("bajpdl_cache"), "version.json");
+        File versionFile = cacheDir.resolve("version.json").toFile();
         if (versionFile.exists()) {
             try {
                 String content = new String(Files.readAllBytes(Paths.get(versionFile.getPath())));
@@ -61,6 +79,13 @@ public class AppCache {
                 tbCrc = json.optLong("tbCrc");
                 mpCrc = json.optLong("mpCrc");
                 abCrc = json.optLong("abCrc");
+                JSONObject rates = json.optJSONObject("mirrorRates");
+                if (rates != null) {
+                    for (Iterator<String> mirrors = rates.keys(); mirrors.hasNext(); ) {
+                        String mirror = mirrors.next();
+                        mirrorRates.put(mirror, rates.getDouble(mirror));
+                    }
+                }
             } catch (IOException | JSONException e) {
                 e.printStackTrace();
             }
@@ -68,7 +93,8 @@ public class AppCache {
     }
     
     public void saveCache(AppConfig config) {
-        File versionFile = new File(context.getExternalFilesDir("bajpdl_cache"), "version.json");
+        File versionFile = cacheDir.resolve("version.json").toFile();
+        versionFile.getParentFile().mkdirs();
         try (FileWriter writer = new FileWriter(versionFile)) {
             JSONObject json = new JSONObject();
             // yostarServerUrl = config.getYostarServerInfoUrl();
@@ -76,6 +102,11 @@ public class AppCache {
             json.put("tbCrc", tbCrc);
             json.put("mpCrc", mpCrc);
             json.put("abCrc", abCrc);
+            JSONObject rates = new JSONObject();
+            for (Map.Entry<String, Double> rate : mirrorRates.entrySet()) {
+                rates.put(rate.getKey(), rate.getValue().doubleValue());
+            }
+            json.put("mirrorRates", rates);
             writer.write(json.toString());
         } catch (IOException | JSONException e) {
             e.printStackTrace();
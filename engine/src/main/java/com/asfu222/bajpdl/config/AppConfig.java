@@ -1,6 +1,6 @@
 package com.asfu222.bajpdl.config;
 
-import android.content.Context;
+import com.asfu222.bajpdl.service.ConnectionManager;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -11,15 +11,19 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
 public class AppConfig {
     private boolean alwaysRedownload = false;
     private boolean downloadCustomOnly = true;
@@ -28,16 +32,37 @@ public class AppConfig {
 
     private boolean openBA = true;
     private List<String> serverUrls;
-    private final Context context;
-    private String fallbackUrl;
+    private final Path configDir;
+    private volatile String fallbackUrl;
     private int concurrentDownloads = 5;
+    private ThroughputMode throughputMode = ThroughputMode.MAX_THROUGHPUT;
+    private long maxDownloadRate = 0; // bytes per second, 0 = unlimited
+    private long backgroundDownloadRate = 1024 * 1024; // bytes per second
+    private int backgroundConcurrentDownloads = 2;
+    private boolean recordMetrics = false;
+    private int verifyThreads = 0; // 0 = one per CPU core
+    private int installThreads = 2;
+
+    public enum ThroughputMode {
+        MAX_THROUGHPUT,
+        BACKGROUND
+    }
 
-    public AppConfig(Context context, BiConsumer<String, Exception> handler) {
-        this.context = context;
+    public AppConfig(Path configDir, BiConsumer<String, Exception> handler) {
+        this.configDir = configDir;
         loadConfig();
         fetchFallbackUrl(handler);
     }
 
+    /**
+     * Uses a fixed fallback server instead of looking it up, for headless runs and local mirrors.
+     */
+    public AppConfig(Path configDir, String fallbackUrl) {
+        this.configDir = configDir;
+        this.fallbackUrl = fallbackUrl;
+        loadConfig();
+    }
+
     public boolean shouldAlwaysRedownload() {
         return alwaysRedownload;
     }
@@ -62,6 +87,82 @@ public class AppConfig {
         this.concurrentDownloads = concurrentDownloads;
     }
 
+    public ThroughputMode getThroughputMode() {
+        return throughputMode;
+    }
+
+    public void setThroughputMode(ThroughputMode throughputMode) {
+        this.throughputMode = throughputMode;
+    }
+
+    public long getMaxDownloadRate() {
+        return maxDownloadRate;
+    }
+
+    public void setMaxDownloadRate(long maxDownloadRate) {
+        this.maxDownloadRate = maxDownloadRate;
+    }
+
+    public long getBackgroundDownloadRate() {
+        return backgroundDownloadRate;
+    }
+
+    public void setBackgroundDownloadRate(long backgroundDownloadRate) {
+        this.backgroundDownloadRate = backgroundDownloadRate;
+    }
+
+    public long getEffectiveDownloadRate() {
+        if (throughputMode == ThroughputMode.BACKGROUND) {
+            return maxDownloadRate > 0 ? Math.min(maxDownloadRate, backgroundDownloadRate) : backgroundDownloadRate;
+        }
+        return maxDownloadRate;
+    }
+
+    public int getEffectiveConcurrentDownloads() {
+        if (throughputMode == ThroughputMode.BACKGROUND) {
+            return Math.max(Math.min(concurrentDownloads, backgroundConcurrentDownloads), 1);
+        }
+        return concurrentDownloads;
+    }
+
+    public int getVerifyThreads() {
+        return verifyThreads;
+    }
+
+    public void setVerifyThreads(int verifyThreads) {
+        this.verifyThreads = verifyThreads;
+    }
+
+    public int getInstallThreads() {
+        return installThreads;
+    }
+
+    public void setInstallThreads(int installThreads) {
+        this.installThreads = installThreads;
+    }
+
+    public int getEffectiveVerifyThreads() {
+        if (throughputMode == ThroughputMode.BACKGROUND) {
+            return 1;
+        }
+        return verifyThreads > 0 ? verifyThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getEffectiveInstallThreads() {
+        if (throughputMode == ThroughputMode.BACKGROUND) {
+            return 1;
+        }
+        return Math.max(installThreads, 1);
+    }
+
+    public boolean shouldRecordMetrics() {
+        return recordMetrics;
+    }
+
+    public void setRecordMetrics(boolean recordMetrics) {
+        this.recordMetrics = recordMetrics;
+    }
+
     public boolean shouldOpenBA() {
         return openBA;
     }
@@ -95,7 +196,7 @@ public class AppConfig {
     }
 
     private void loadConfig() {
-        File configFile = new File(context.getExternalFilesDir("bajpdl_cfg"), "config.json");
+        File configFile = configDir.resolve("config.json").toFile();
         if (configFile.exists()) {
             try {
                 String content = new String(Files.readAllBytes(Paths.get(configFile.getPath())));
@@ -106,6 +207,17 @@ public class AppConfig {
                 concurrentDownloads = Math.min(json.optInt("concurrentDownloads", 5), 5);
                 openBA = json.optBoolean("openBA", true);
                 useMITM = json.optBoolean("useMITM", false);
+                try {
+                    throughputMode = ThroughputMode.valueOf(json.optString("throughputMode", ThroughputMode.MAX_THROUGHPUT.name()));
+                } catch (IllegalArgumentException e) {
+                    throughputMode = ThroughputMode.MAX_THROUGHPUT;
+                }
+                maxDownloadRate = Math.max(json.optLong("maxDownloadRate", 0), 0);
+                backgroundDownloadRate = Math.max(json.optLong("backgroundDownloadRate", 1024 * 1024), 0);
+                backgroundConcurrentDownloads = Math.max(json.optInt("backgroundConcurrentDownloads", 2), 1);
+                recordMetrics = json.optBoolean("recordMetrics", false);
+                verifyThreads = Math.max(json.optInt("verifyThreads", 0), 0);
+                installThreads = Math.max(json.optInt("installThreads", 2), 1);
                 serverUrls = new ArrayList<>();
                 for (int i = 0; i < urlsArray.length(); i++) {
                     serverUrls.add(urlsArray.getString(i));
@@ -134,19 +246,20 @@ private void fetchFallbackUrl(BiConsumer<String, Exception> handler) {
                 attempt++;
                 System.out.println("Attempt " + attempt + " to fetch fallback URL...");
 
-                URL url = new URL(FALLBACK_URL);
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod("GET");
-                connection.setConnectTimeout(TIMEOUT);
-                connection.setReadTimeout(TIMEOUT);
-
-                int responseCode = connection.getResponseCode();
-                if (responseCode != 200) {
-                    throw new IOException("HTTP response code: " + responseCode);
-                }
+                // Shares the download client's pool and DNS cache, so the lookup warms them up too
+                OkHttpClient client = ConnectionManager.client().newBuilder()
+                        .connectTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                        .readTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                        .build();
+                Request request = new Request.Builder().url(FALLBACK_URL).get().build();
 
                 String[] fetchedUrl = new String[2];
-                try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
+                try (Response response = client.newCall(request).execute()) {
+                    int responseCode = response.code();
+                    if (responseCode != 200 || response.body() == null) {
+                        throw new IOException("HTTP response code: " + responseCode);
+                    }
+                    BufferedReader in = new BufferedReader(new InputStreamReader(response.body().byteStream()));
                     String line;
                     while ((line = in.readLine()) != null) {
                         if (line.startsWith("BA_SERVER_URL=")) {
@@ -194,7 +307,8 @@ private void fetchFallbackUrl(BiConsumer<String, Exception> handler) {
 }
 
     public void saveConfig() {
-        File configFile = new File(context.getExternalFilesDir("bajpdl_cfg"), "config.json");
+        File configFile = configDir.resolve("config.json").toFile();
+        configFile.getParentFile().mkdirs();
         try (FileWriter writer = new FileWriter(configFile)) {
             JSONObject json = new JSONObject();
             json.put("replaceDownloadedFiles", alwaysRedownload);
@@ -204,6 +318,13 @@ private void fetchFallbackUrl(BiConsumer<String, Exception> handler) {
             json.put("concurrentDownloads", concurrentDownloads);
             json.put("openBA", openBA);
             json.put("useMITM", shouldUseMITM());
+            json.put("throughputMode", throughputMode.name());
+            json.put("maxDownloadRate", maxDownloadRate);
+            json.put("backgroundDownloadRate", backgroundDownloadRate);
+            json.put("backgroundConcurrentDownloads", backgroundConcurrentDownloads);
+            json.put("recordMetrics", recordMetrics);
+            json.put("verifyThreads", verifyThreads);
+            json.put("installThreads", installThreads);
             writer.write(json.toString());
         } catch (IOException | JSONException e) {
             e.printStackTrace();
@@ -0,0 +1,136 @@
+package com.asfu222.bajpdl.core;
+
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * Feeds items from an iterator to an asynchronous task, keeping at most {@code maxInFlight} tasks
+ * running. Unlike mapping every item to a future up front, memory stays flat no matter how many
+ * items there are, and failures are counted as tasks finish. An optional {@link Admission} can
+ * hold the next item back for other reasons, e.g. until there is disk space for it.
+ */
+public class BoundedScheduler<T> {
+    /**
+     * Decides whether an item may start now, beyond the in-flight limit.
+     */
+    public interface Admission<T> {
+        /**
+         * @param wakeUp to be run once the item may be able to start, if it may not start now
+         * @return whether item may start now; if not, the scheduler asks again on wakeUp or when one of its tasks finishes
+         */
+        boolean tryAdmit(T item, Runnable wakeUp);
+
+        /**
+         * Called once for every admitted item when its task finished.
+         */
+        void finished(T item, boolean success);
+    }
+
+    private final Iterator<T> items;
+    private final IntSupplier maxInFlight;
+    private final Function<T, CompletableFuture<Boolean>> task;
+    private final BiConsumer<T, Throwable> errorHandler;
+    private final Admission<T> admission;
+    private final CompletableFuture<Integer> completion = new CompletableFuture<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    // Drain loop guard: only one thread submits at a time, others just ask it to go round again
+    private final AtomicInteger drainRequests = new AtomicInteger();
+    private int inFlight;
+    private boolean exhausted;
+    private T next; // taken from items but not admitted yet
+
+    /**
+     * @param maxInFlight read before every submission, so limit changes apply to running schedules
+     * @param task        completes with false (or exceptionally) when the item failed
+     */
+    public BoundedScheduler(Iterator<T> items, IntSupplier maxInFlight,
+                            Function<T, CompletableFuture<Boolean>> task, BiConsumer<T, Throwable> errorHandler) {
+        this(items, maxInFlight, task, errorHandler, null);
+    }
+
+    /**
+     * @param admission asked before each item starts, after the in-flight limit; null admits everything
+     */
+    public BoundedScheduler(Iterator<T> items, IntSupplier maxInFlight, Function<T, CompletableFuture<Boolean>> task,
+                            BiConsumer<T, Throwable> errorHandler, Admission<T> admission) {
+        this.items = items;
+        this.maxInFlight = maxInFlight;
+        this.task = task;
+        this.errorHandler = errorHandler;
+        this.admission = admission;
+    }
+
+    /**
+     * @return completes with the number of failed items once every item has finished
+     */
+    public CompletableFuture<Integer> run() {
+        drain();
+        return completion;
+    }
+
+    private void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            while (true) {
+                T item;
+                synchronized (this) {
+                    if (next == null && !exhausted) {
+                        if (items.hasNext()) {
+                            next = items.next();
+                        } else {
+                            exhausted = true;
+                        }
+                    }
+                    if (next == null) {
+                        if (inFlight == 0 && !completion.isDone()) {
+                            completion.complete(failures.get());
+                        }
+                        break;
+                    }
+                    if (inFlight >= Math.max(maxInFlight.getAsInt(), 1)) {
+                        break;
+                    }
+                    if (admission != null && !admission.tryAdmit(next, this::drain)) {
+                        break;
+                    }
+                    item = next;
+                    next = null;
+                    inFlight++;
+                }
+                submit(item);
+            }
+        } while (drainRequests.decrementAndGet() != 0);
+    }
+
+    private void submit(T item) {
+        CompletableFuture<Boolean> future;
+        try {
+            future = task.apply(item);
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        // May run inline if the task already finished; drain() then just loops again
+        future.whenComplete((success, ex) -> {
+            if (ex != null) {
+                errorHandler.accept(item, ex);
+            }
+            if (ex != null || !Boolean.TRUE.equals(success)) {
+                failures.incrementAndGet();
+            }
+            if (admission != null) {
+                admission.finished(item, ex == null && Boolean.TRUE.equals(success));
+            }
+            synchronized (this) {
+                inFlight--;
+            }
+            drain();
+        });
+    }
+}
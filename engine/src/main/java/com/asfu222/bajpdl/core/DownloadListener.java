@@ -0,0 +1,25 @@
+package com.asfu222.bajpdl.core;
+
+/**
+ * Receives console output and progress from {@link GameFileManager}. Called from worker threads.
+ */
+public interface DownloadListener {
+    void updateConsole(String message);
+
+    void logErrorToConsole(String message, Throwable ex);
+
+    void updateProgress(int downloadedFiles, int totalFiles, long downloadedMB, long totalMB);
+
+    /**
+     * Called when the visible progress changed, at most every 250 ms. Override to show throughput and ETA.
+     */
+    default void onProgress(ProgressSnapshot progress) {
+        updateProgress(progress.downloadedFiles, progress.totalFiles, progress.downloadedBytes >> 20, progress.totalBytes >> 20);
+    }
+
+    /**
+     * Called once per downloaded file (catalogs included) when it finished or gave up, with the time a worker spent on it.
+     */
+    default void onFileDownloaded(String relPath, boolean success, long elapsedNanos) {
+    }
+}
@@ -0,0 +1,742 @@
+package com.asfu222.bajpdl.core;
+
+import com.asfu222.bajpdl.config.AppCache;
+import com.asfu222.bajpdl.config.AppConfig;
+import com.asfu222.bajpdl.metrics.JsonLinesExporter;
+import com.asfu222.bajpdl.metrics.Metrics;
+import com.asfu222.bajpdl.metrics.MetricsRegistry;
+import com.asfu222.bajpdl.metrics.Span;
+import com.asfu222.bajpdl.service.CommonCatalogItem;
+import com.asfu222.bajpdl.service.FileDownloader;
+import com.asfu222.bajpdl.service.IncludeGraph;
+import com.asfu222.bajpdl.service.MXCatalog;
+import com.asfu222.bajpdl.util.FileUtils;
+import com.asfu222.bajpdl.util.GameFS;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+public class GameFileManager {
+    private static final double BYTES_TO_MB = 1024.0 * 1024.0;
+    // Less than this from a mirror in a run says more about latency than about its rate
+    private static final long MIN_RATE_SAMPLE_BYTES = 8 * 1024 * 1024;
+
+    private final FileDownloader fileDownloader;
+    private final AppConfig appConfig;
+    private final AppCache appCache;
+    private final Path dataPath;
+    private final Path cachePath;
+    private final DownloadListener listener;
+    private final ProgressPublisher progress;
+    // Free space for the current run, shared by all of its catalogs
+    private volatile SpaceBudget spaceBudget;
+
+    /**
+     * @param dataPath  staging directory for downloads that do not go straight into the game
+     * @param cachePath where APKs and their hashes are downloaded to
+     */
+    public GameFileManager(AppConfig appConfig, AppCache appCache, Path dataPath, Path cachePath, DownloadListener listener) {
+        this.appConfig = appConfig;
+        this.appCache = appCache;
+        this.fileDownloader = new FileDownloader(appConfig);
+        this.dataPath = dataPath;
+        this.cachePath = cachePath;
+        this.listener = listener;
+        this.fileDownloader.setTransferListener(listener::onFileDownloaded);
+        this.progress = new ProgressPublisher(listener::onProgress, fileDownloader::getMirrorBytes);
+    }
+
+    public AppConfig getAppConfig() {
+        return appConfig;
+    }
+
+    public AppCache getAppCache() {
+        return appCache;
+    }
+
+    public CompletableFuture<Path> downloadSingleAPK(String apkUrl) {
+        progress.reset();
+        progress.addTotal(1, 0);
+        isDownloading = true;
+        progress.start(progressScheduler);
+        String apkFileName = apkUrl.substring(apkUrl.lastIndexOf('/') + 1);
+        log("开始下载APK文件: " + apkUrl);
+        log(apkFileName);
+        return fileDownloader.downloadAsync(apkUrl + ".hash", cachePath.resolve(apkFileName + ".hash"), path -> true, true, this::logError, new LongAdder()).thenCompose(hashPath -> {
+            try {
+                String[] hash_info = new String(GameFS.readAllBytes(hashPath), StandardCharsets.UTF_8).trim().split(" ");
+                long crc = Long.parseLong(hash_info[0]);
+                long size = Long.parseLong(hash_info[1]);
+                CommonCatalogItem item = new CommonCatalogItem(apkFileName, size, crc, false);
+                progress.addTotal(0, size);
+                return fileDownloader.downloadAsync(apkUrl, cachePath.resolve(apkFileName), item::verifyIntegrity, false, this::logError, progress.getDownloadedBytes())
+                        .thenApply(p -> {
+                            isDownloading = false;
+                            progress.stop();
+                            progress.fileCompleted();
+                            progress.publish(true);
+                            return p;
+                        });
+            } catch (IOException e) {
+                logError("读取APK哈希值时报错", e);
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+    }
+    public CompletableFuture<Boolean> processFile(Map.Entry<String, CommonCatalogItem> catalogEntry) {
+        // Copying and cleanup are disk work, so they wait for an install thread rather than a download thread
+        return fileDownloader.downloadFile(dataPath, catalogEntry.getKey(),
+                catalogEntry.getValue()::verifyIntegrity, appConfig.shouldAlwaysRedownload(), this::logError, catalogEntry.getValue(), progress.getDownloadedBytes()).thenApplyAsync(downloadedFile -> {
+            if (downloadedFile == null) {
+                log("下载此文件失败: " + catalogEntry.getKey());
+                return false;
+            }
+            try {
+                if (!appConfig.shouldDownloadStraightToGame()) {
+                    try (Span ignored = Metrics.span("file.install", catalogEntry.getKey())) {
+                        downloadedFile = FileUtils.copyToGame(downloadedFile, catalogEntry.getKey(), catalogEntry.getValue().crc);
+                    }
+                }
+                try (Span ignored = Metrics.span("file.cleanup", catalogEntry.getKey())) {
+                    FileUtils.deleteOldGameFiles(downloadedFile, this::logError);
+                }
+            } catch (Exception e) {
+                logError("处理文件时报错: " + catalogEntry.getKey(), e);
+                return false;
+            }
+
+            progress.fileCompleted();
+            return true;
+        }, fileDownloader.getInstallExecutor());
+    }
+
+    public CompletableFuture<Boolean> processFiles(Map<String, CommonCatalogItem> catalog) {
+        return processFiles(catalog, IncludeGraph.EMPTY);
+    }
+
+    /**
+     * @param includes a file is only started once the files it includes are installed, and is
+     *                 given up if one of them failed, so the game never loads a table bundle
+     *                 ahead of its dependencies
+     */
+    public CompletableFuture<Boolean> processFiles(Map<String, CommonCatalogItem> catalog, IncludeGraph includes) {
+        return processFiles(catalog, includes, null);
+    }
+
+    /**
+     * @param plan the files' space plan if it was worked out already, otherwise null
+     */
+    private CompletableFuture<Boolean> processFiles(Map<String, CommonCatalogItem> catalog, IncludeGraph includes, SpacePlan plan) {
+        log("正在处理 " + catalog.size() + " 个文件");
+
+        SpaceBudget budget = spaceBudget;
+        if (budget != null) {
+            if (plan == null) {
+                plan = buildSpacePlan(catalog);
+            }
+            if (plan != null) {
+                applySpacePlan(plan, budget);
+            }
+        }
+
+        List<String> sortedPaths = new ArrayList<>(catalog.keySet());
+        sortedPaths.sort((p1, p2) -> Long.compare(catalog.get(p2).size, catalog.get(p1).size));
+        if (plan != null) {
+            sortedPaths = plan.order(sortedPaths);
+        }
+        // Includes first; the scheduler starts files in this order, so a file's includes are always already running
+        sortedPaths = includes.order(sortedPaths);
+        List<Map.Entry<String, CommonCatalogItem>> sortedEntries = new ArrayList<>(sortedPaths.size());
+        for (String path : sortedPaths) {
+            sortedEntries.add(new AbstractMap.SimpleImmutableEntry<>(path, catalog.get(path)));
+        }
+        Map<String, CompletableFuture<Boolean>> started = includes.isEmpty() ? null : new ConcurrentHashMap<>();
+
+        // Keep every stage busy with a little queued work, instead of queueing the whole catalog
+        return new BoundedScheduler<>(sortedEntries.iterator(),
+                fileDownloader::getPipelineCapacity,
+                started == null ? this::processFile : entry -> processAfterIncludes(entry, includes, started),
+                (entry, ex) -> logError("处理文件错误: " + entry.getKey(), new Exception(ex)),
+                plan != null ? budget : null)
+                .run()
+                .thenApply(failures -> {
+                    log("所有文件处理完毕。 失败文件数: " + failures);
+                    return failures == 0;
+                });
+    }
+
+
+    /**
+     * Works out what the files will add to and free from the game directory.
+     *
+     * @return null if the game directory could not be listed; the files then run without a budget
+     */
+    private SpacePlan buildSpacePlan(Map<String, CommonCatalogItem> catalog) {
+        try (Span ignored = Metrics.span("plan.space", String.valueOf(catalog.size()))) {
+            return SpacePlan.build(catalog, (path, item) ->
+                    fileDownloader.isUpToDate(dataPath, path, item, appConfig.shouldAlwaysRedownload()));
+        } catch (IOException e) {
+            logError("计算所需存储空间时报错", e);
+            return null;
+        }
+    }
+
+    /**
+     * Deletes what can go right away and hands the rest of the plan to the run's budget.
+     */
+    private void applySpacePlan(SpacePlan plan, SpaceBudget budget) {
+        log(plan.format());
+        budget.add(plan, plan.reclaim(this::logError));
+        long needed = Math.max(plan.getAdded() - plan.getFreed(), 0) + plan.getLargestAdded();
+        if (needed > budget.getAvailable()) {
+            log(String.format("存储空间可能不足: 约需 %.1f MB, 剩余 %.1f MB。放不下的文件会等其它文件释放空间后再下载",
+                    needed / BYTES_TO_MB, Math.max(budget.getAvailable(), 0) / BYTES_TO_MB));
+        }
+    }
+
+    /**
+     * Starts the budget the files of this run share, from the free space on the game's filesystem.
+     */
+    private void startSpaceBudget() {
+        try {
+            spaceBudget = new SpaceBudget(GameFS.usableSpace(FileUtils.getGameRoot()));
+        } catch (IOException e) {
+            logError("无法获取剩余存储空间", e);
+            spaceBudget = null;
+        }
+    }
+
+    private CompletableFuture<Boolean> processAfterIncludes(Map.Entry<String, CommonCatalogItem> entry, IncludeGraph includes,
+                                                            Map<String, CompletableFuture<Boolean>> started) {
+        List<CompletableFuture<Boolean>> dependencies = new ArrayList<>();
+        for (String include : includes.getIncludes(entry.getKey())) {
+            CompletableFuture<Boolean> dependency = started.get(include);
+            if (dependency != null) {
+                dependencies.add(dependency);
+            }
+        }
+        CompletableFuture<Boolean> future;
+        if (dependencies.isEmpty()) {
+            future = processFile(entry);
+        } else {
+            future = CompletableFuture.allOf(dependencies.toArray(new CompletableFuture[0])).handle((v, ex) ->
+                    ex == null && dependencies.stream().allMatch(dependency -> Boolean.TRUE.equals(dependency.join()))
+            ).thenCompose(ready -> {
+                if (!ready) {
+                    log("依赖文件下载失败，跳过: " + entry.getKey());
+                    return CompletableFuture.completedFuture(false);
+                }
+                return processFile(entry);
+            });
+        }
+        started.put(entry.getKey(), future);
+        return future;
+    }
+
+    private static boolean isDownloading = false;
+    private final ScheduledExecutorService progressScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "GameFileManager progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Deque<Runnable> onDownloadComplete = new ArrayDeque<>();
+
+    public Deque<Runnable> getOnDownloadComplete() {
+        return onDownloadComplete;
+    }
+
+
+    /**
+     * @return completes with whether every catalog and file was processed successfully
+     */
+    public CompletableFuture<Boolean> startDownloads() {
+        if (isDownloading) {
+            log("已经在下载中");
+            return CompletableFuture.completedFuture(false);
+        }
+        log("开始下载更新...");
+        progress.reset();
+        fileDownloader.updateThreadPool();
+        isDownloading = true;
+        startMetrics();
+        long startNanos = System.nanoTime();
+        Map<String, Long> mirrorBytesAtStart = fileDownloader.getMirrorBytes();
+        progress.start(progressScheduler);
+        fileDownloader.prewarmConnections();
+        startSpaceBudget();
+
+        return fileDownloader.fetchServerAvailable().thenCompose(ignored -> {
+            Set<String> availableCustomDownloads = fileDownloader.getAvailableCustomDownloads();
+
+            List<CompletableFuture<Boolean>> catalogFutures = List.of(
+                    downloadAndProcessCatalog("TableBundles/TableCatalog.bytes", availableCustomDownloads),
+                    downloadAndProcessCatalog("MediaResources/Catalog/MediaCatalog.bytes", availableCustomDownloads),
+                    downloadAndProcessCatalog("Android/bundleDownloadInfo.json", availableCustomDownloads),
+                    downloadAndCopyFile("TableBundles/TableCatalog.hash"),
+                    downloadAndCopyFile("MediaResources/Catalog/MediaCatalog.hash"),
+                    downloadAndCopyFile("Android/bundleDownloadInfo.hash")
+            );
+
+            return CompletableFuture.allOf(catalogFutures.toArray(new CompletableFuture[0]))
+                    .handle((v, ex) -> {
+                        if (ex != null) {
+                            logError("处理文件错误", new Exception(ex));
+                        }
+                        log("已完成更新");
+                        recordMirrorRates(mirrorBytesAtStart, startNanos);
+                        finishRun("sync", startNanos);
+                        runOnDownloadComplete();
+                        return ex == null && catalogFutures.stream().allMatch(future -> Boolean.TRUE.equals(future.join()));
+                    });
+        });
+    }
+
+    /**
+     * Works out what {@link #startDownloads()} would do, without touching the game directory: the
+     * catalogs are fetched into the staging directory (copies from an earlier plan are kept if
+     * they still match their hash files) and compared with the installed files, and the time is
+     * estimated from the rates the mirrors reached in earlier runs. Hand the plan to
+     * {@link #execute(UpdatePlan)} to carry it out without fetching or parsing anything again.
+     *
+     * @return completes with null if a catalog could not be fetched or read; the reason is already logged
+     */
+    public CompletableFuture<UpdatePlan> planUpdate() {
+        if (isDownloading) {
+            log("已经在下载中");
+            return CompletableFuture.completedFuture(null);
+        }
+        log("正在计算更新计划...");
+        isDownloading = true;
+        long startNanos = System.nanoTime();
+        fileDownloader.prewarmConnections();
+
+        return fileDownloader.fetchServerAvailable().thenCompose(ignored -> {
+            Set<String> availableCustomDownloads = fileDownloader.getAvailableCustomDownloads();
+            List<CompletableFuture<UpdatePlan.Catalog>> catalogFutures = new ArrayList<>();
+            for (int i = 0; i < IntegrityScanner.CATALOGS.size(); i++) {
+                catalogFutures.add(stageCatalog(IntegrityScanner.CATALOGS.get(i), IntegrityScanner.HASH_FILES.get(i), availableCustomDownloads));
+            }
+            return CompletableFuture.allOf(catalogFutures.toArray(new CompletableFuture[0])).thenApply(v -> {
+                List<UpdatePlan.Catalog> catalogs = new ArrayList<>();
+                for (CompletableFuture<UpdatePlan.Catalog> future : catalogFutures) {
+                    catalogs.add(future.join());
+                }
+                long usableSpace;
+                try {
+                    usableSpace = GameFS.usableSpace(FileUtils.getGameRoot());
+                } catch (IOException e) {
+                    logError("无法获取剩余存储空间", e);
+                    usableSpace = -1;
+                }
+                return new UpdatePlan(catalogs, usableSpace, appCache::getMirrorRate, appConfig.getEffectiveDownloadRate());
+            });
+        }).handle((plan, ex) -> {
+            Metrics.recordNanos("plan.update", System.nanoTime() - startNanos);
+            isDownloading = false;
+            if (ex != null) {
+                logError("计算更新计划时报错", new Exception(ex));
+                return null;
+            }
+            log(plan.format());
+            return plan;
+        });
+    }
+
+    /**
+     * Fetches a catalog and its hash file into the staging directory, reads the catalog and plans
+     * its files against the game directory.
+     */
+    private CompletableFuture<UpdatePlan.Catalog> stageCatalog(String catalogPath, String hashPath, Set<String> availableCustomDownloads) {
+        Path hashFile = dataPath.resolve(hashPath);
+        return fileDownloader.downloadFileTo(hashFile, hashPath, path -> true, true, this::logError, CommonCatalogItem.EMPTY, new LongAdder()).thenCompose(hash -> {
+            if (hash == null) {
+                throw new CompletionException(new IOException("下载失败： " + hashPath));
+            }
+            CommonCatalogItem item = readHashFile(hash, catalogPath);
+            // A catalog staged by an earlier plan is only kept if it matches the hash
+            return item != null
+                    ? fileDownloader.downloadFileTo(dataPath.resolve(catalogPath), catalogPath, item::verifyIntegrity, false, this::logError, item, new LongAdder())
+                    : fileDownloader.downloadFileTo(dataPath.resolve(catalogPath), catalogPath, path -> true, true, this::logError, CommonCatalogItem.EMPTY, new LongAdder());
+        }).thenApply(path -> {
+            if (path == null) {
+                throw new CompletionException(new IOException("下载失败： " + catalogPath));
+            }
+            try {
+                MXCatalog catalog;
+                try (Span ignored = Metrics.span("catalog.parse", catalogPath)) {
+                    catalog = parseCatalog(catalogPath, GameFS.readAllBytes(path));
+                }
+                if (appConfig.shouldDownloadCustomOnly()) {
+                    catalog.getData().keySet().removeIf(key -> !availableCustomDownloads.contains(key));
+                }
+                SpacePlan space = buildSpacePlan(catalog.getData());
+                return new UpdatePlan.Catalog(catalogPath, path, hashPath, hashFile, catalog, space, fileDownloader::getFirstMirror);
+            } catch (IOException | JSONException e) {
+                throw new CompletionException(new IOException("处理时报错： " + catalogPath, e));
+            }
+        });
+    }
+
+    /**
+     * Carries out a plan from {@link #planUpdate()}: installs the staged catalogs and downloads
+     * their files, using the plan's catalogs and space plans as they are.
+     *
+     * @return completes with whether every catalog and file was processed successfully
+     */
+    public CompletableFuture<Boolean> execute(UpdatePlan plan) {
+        if (isDownloading) {
+            log("已经在下载中");
+            return CompletableFuture.completedFuture(false);
+        }
+        if (!plan.markExecuted()) {
+            log("此更新计划已执行过，请重新计算");
+            return CompletableFuture.completedFuture(false);
+        }
+        log("开始下载更新...");
+        progress.reset();
+        fileDownloader.updateThreadPool();
+        isDownloading = true;
+        startMetrics();
+        long startNanos = System.nanoTime();
+        Map<String, Long> mirrorBytesAtStart = fileDownloader.getMirrorBytes();
+        progress.start(progressScheduler);
+        fileDownloader.prewarmConnections();
+        startSpaceBudget();
+
+        List<CompletableFuture<Boolean>> catalogFutures = new ArrayList<>();
+        for (UpdatePlan.Catalog catalog : plan.getCatalogs()) {
+            Map<String, CommonCatalogItem> files = catalog.catalog.getData();
+            progress.addTotal(files.size(), files.values().stream().mapToLong(item -> item.size).sum());
+        }
+        for (UpdatePlan.Catalog catalog : plan.getCatalogs()) {
+            try {
+                FileUtils.copyToGame(catalog.file, catalog.catalogPath);
+                FileUtils.copyToGame(catalog.hashFile, catalog.hashPath);
+            } catch (IOException e) {
+                logError("复制此文件到游戏时报错： " + catalog.catalogPath, e);
+                catalogFutures.add(CompletableFuture.completedFuture(false));
+                continue;
+            }
+            catalogFutures.add(processFiles(catalog.catalog.getData(), catalog.catalog.getIncludes(), catalog.space));
+        }
+
+        return CompletableFuture.allOf(catalogFutures.toArray(new CompletableFuture[0]))
+                .handle((v, ex) -> {
+                    if (ex != null) {
+                        logError("处理文件错误", new Exception(ex));
+                    }
+                    log("已完成更新");
+                    recordMirrorRates(mirrorBytesAtStart, startNanos);
+                    finishRun("sync", startNanos);
+                    runOnDownloadComplete();
+                    return ex == null && catalogFutures.stream().allMatch(future -> Boolean.TRUE.equals(future.join()));
+                });
+    }
+
+    private void runOnDownloadComplete() {
+        for (Runnable runnable : onDownloadComplete) {
+            runnable.run();
+        }
+        onDownloadComplete.clear();
+    }
+
+    /**
+     * @return the catalog's CRC and size from its hash file ("crc size"), or null if it holds something else
+     */
+    private static CommonCatalogItem readHashFile(Path hashFile, String catalogPath) {
+        try {
+            String[] hashInfo = new String(GameFS.readAllBytes(hashFile), StandardCharsets.UTF_8).trim().split(" ");
+            return new CommonCatalogItem(catalogPath, Long.parseLong(hashInfo[1]), Long.parseLong(hashInfo[0]), false);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Updates only the given table bundles and the ones they include, from the latest TableCatalog.
+     * Included bundles that are already up to date are kept as they are.
+     *
+     * @param tables catalog paths such as {@code TableBundles/Excel.zip}
+     * @return completes with whether every requested bundle and its includes were processed successfully
+     */
+    public CompletableFuture<Boolean> refreshTables(Collection<String> tables) {
+        if (isDownloading) {
+            log("已经在下载中");
+            return CompletableFuture.completedFuture(false);
+        }
+        log("开始更新 " + tables.size() + " 个表格文件...");
+        progress.reset();
+        fileDownloader.updateThreadPool();
+        isDownloading = true;
+        startMetrics();
+        long startNanos = System.nanoTime();
+        Map<String, Long> mirrorBytesAtStart = fileDownloader.getMirrorBytes();
+        progress.start(progressScheduler);
+        fileDownloader.prewarmConnections();
+        startSpaceBudget();
+
+        return fileDownloader.fetchServerAvailable()
+                .thenCompose(ignored -> downloadAndProcessCatalog("TableBundles/TableCatalog.bytes",
+                        fileDownloader.getAvailableCustomDownloads(), tables)
+                        .thenCombine(downloadAndCopyFile("TableBundles/TableCatalog.hash"), (bundles, hash) -> bundles && hash))
+                .handle((success, ex) -> {
+                    if (ex != null) {
+                        logError("处理文件错误", new Exception(ex));
+                    }
+                    log("已完成更新");
+                    recordMirrorRates(mirrorBytesAtStart, startNanos);
+                    finishRun("refresh", startNanos);
+                    return ex == null && success;
+                });
+    }
+
+    /**
+     * Checks the installed files against the catalogs already in the game directory and, if
+     * {@code repair} is set, downloads only the missing and corrupt ones. Orphaned files are
+     * reported but left alone.
+     *
+     * @return completes with whether the game files are intact afterwards
+     */
+    public CompletableFuture<Boolean> verifyAndRepair(boolean repair) {
+        if (isDownloading) {
+            log("已经在下载中");
+            return CompletableFuture.completedFuture(false);
+        }
+        log("开始校验游戏文件...");
+        progress.reset();
+        fileDownloader.updateThreadPool();
+        isDownloading = true;
+        startMetrics();
+        long startNanos = System.nanoTime();
+        progress.start(progressScheduler);
+
+        IntegrityScanner scanner = new IntegrityScanner(appConfig.getEffectiveVerifyThreads(), this::logError);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return scanner.scan(progress);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).thenCompose(report -> {
+            progress.publish(true);
+            log(report.format(20));
+            if (report.isClean() || !repair) {
+                return CompletableFuture.completedFuture(report.isClean());
+            }
+            fileDownloader.prewarmConnections();
+            startSpaceBudget();
+            return fileDownloader.fetchServerAvailable().thenCompose(ignored -> {
+                Map<String, CommonCatalogItem> broken = new HashMap<>(report.missing);
+                broken.putAll(report.corrupt);
+                int total = broken.size();
+                if (appConfig.shouldDownloadCustomOnly()) {
+                    broken.keySet().retainAll(fileDownloader.getAvailableCustomDownloads());
+                    if (broken.size() < total) {
+                        log((total - broken.size()) + " 个文件不在以上网址中，跳过（由游戏自行下载）");
+                    }
+                }
+                progress.reset();
+                progress.addTotal(broken.size(), broken.values().stream().mapToLong(item -> item.size).sum());
+                log("开始修复 " + broken.size() + " 个文件");
+                return processFiles(broken).thenApply(success -> success && broken.size() == total);
+            });
+        }).handle((success, ex) -> {
+            if (ex != null) {
+                logError("校验游戏文件时报错", new Exception(ex));
+            }
+            finishRun("verify", startNanos);
+            return ex == null && success;
+        });
+    }
+
+    private void finishRun(String metric, long startNanos) {
+        Metrics.recordNanos(metric, System.nanoTime() - startNanos);
+        MetricsRegistry registry = Metrics.getRegistry();
+        if (registry != null) {
+            registry.flush();
+        }
+        isDownloading = false;
+        progress.stop();
+        progress.publish(true);
+    }
+
+    /**
+     * Keeps how fast each mirror delivered over this run in the app cache, for estimating later
+     * runs. Mirrors that sent too little for the rate to mean anything are left out.
+     */
+    private void recordMirrorRates(Map<String, Long> mirrorBytesAtStart, long startNanos) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        boolean recorded = false;
+        for (Map.Entry<String, Long> mirror : fileDownloader.getMirrorBytes().entrySet()) {
+            long bytes = mirror.getValue() - mirrorBytesAtStart.getOrDefault(mirror.getKey(), 0L);
+            if (bytes >= MIN_RATE_SAMPLE_BYTES && elapsedNanos > 0) {
+                appCache.recordMirrorRate(mirror.getKey(), bytes * 1e9 / elapsedNanos);
+                recorded = true;
+            }
+        }
+        if (recorded) {
+            appCache.saveCache(appConfig);
+        }
+    }
+
+    private CompletableFuture<Boolean> downloadAndProcessCatalog(String catalogPath, Set<String> availableCustomDownloads) {
+        return downloadAndProcessCatalog(catalogPath, availableCustomDownloads, null);
+    }
+
+    /**
+     * @param tables if not null, only these table bundles (and what they include) are processed
+     */
+    private CompletableFuture<Boolean> downloadAndProcessCatalog(String catalogPath, Set<String> availableCustomDownloads,
+                                                                 Collection<String> tables) {
+        long fetchStartNanos = System.nanoTime();
+        return fileDownloader.downloadFile(dataPath, catalogPath, path -> true, true, this::logError, CommonCatalogItem.EMPTY, new LongAdder()).thenCompose(path -> {
+            Metrics.recordNanos("catalog.fetch", System.nanoTime() - fetchStartNanos);
+            try {
+                log("已下载 " + catalogPath + ", 处理中...");
+                //long catalogCrc = FileUtils.calculateCRC32(path);
+                MXCatalog catalog;
+                try (Span ignored = Metrics.span("catalog.parse", catalogPath)) {
+                    catalog = parseCatalog(catalogPath, GameFS.readAllBytes(path));
+                }
+                try (Span ignored = Metrics.span("plan", catalogPath)) {
+                    if (tables != null) {
+                        Set<String> selected = new HashSet<>(catalog.getIncludes().withDependencies(tables));
+                        for (String table : tables) {
+                            if (!catalog.getData().containsKey(table)) {
+                                log("资源目录中没有此文件: " + table);
+                            }
+                        }
+                        catalog.getData().keySet().retainAll(selected);
+                    }
+                    if (appConfig.shouldDownloadCustomOnly()) {
+                        catalog.getData().keySet().removeIf(key -> !availableCustomDownloads.contains(key));
+                    }
+                    // catalog.getData().entrySet().removeIf(entry -> !availableCustomDownloads.contains(entry.getKey()) && entry.getValue().size < BYTES_TO_MB);
+                    progress.addTotal(catalog.getData().size(), catalog.getData().values().stream().mapToLong(item -> item.size).sum());
+                }
+                log(catalogPath + " 含有 " + catalog.getData().size() + " 个文件");
+
+                FileUtils.copyToGame(path, catalogPath);
+                return processFiles(catalog.getData(), catalog.getIncludes());
+            } catch (IOException | JSONException ex) {
+                logError("处理时报错： " + catalogPath, ex);
+                return CompletableFuture.completedFuture(false);
+            }
+        });
+    }
+
+    /**
+     * @throws IOException if catalogPath is not one of the catalogs
+     */
+    private static MXCatalog parseCatalog(String catalogPath, byte[] bytes) throws IOException, JSONException {
+        switch (catalogPath) {
+            case "TableBundles/TableCatalog.bytes":
+                return MXCatalog.parseMemoryPackerBytes(bytes, false, true);
+            case "MediaResources/Catalog/MediaCatalog.bytes":
+                return MXCatalog.parseMemoryPackerBytes(bytes, true);
+            case "Android/bundleDownloadInfo.json":
+                return MXCatalog.parseBundleDLInfoJson(bytes);
+            default:
+                throw new IOException("未知的资源目录: " + catalogPath);
+        }
+    }
+
+    private CompletableFuture<Boolean> downloadAndCopyFile(String filePath) {
+        return fileDownloader.downloadFile(dataPath, filePath, path -> true, true, this::logError, CommonCatalogItem.EMPTY, new LongAdder()).thenCompose(path -> {
+            try {
+                FileUtils.copyToGame(path, filePath);
+                return CompletableFuture.completedFuture(true);
+            } catch (IOException e) {
+                logError("复制此文件到游戏时报错： " + filePath, e);
+                return CompletableFuture.completedFuture(false);
+            }
+        });
+    }
+
+    /*
+    public void startReplacements() {
+        try (var paths = GameFS.walk(dataPath)) {
+                CompletableFuture.allOf(paths
+                            .filter(Files::isRegularFile)
+                            .map(file -> CompletableFuture.runAsync(() -> {
+                                try {
+                                    Path relPath = dataPath.relativize(file);
+                                    FileUtils.copyToGame(file, relPath.toString());
+                                    log("已复制至游戏: " + relPath);
+                                } catch (IOException e) {
+                                    logError("复制到游戏时报错", e);
+                                }
+                            })).toArray(CompletableFuture[]::new))
+                    .thenRun(() -> log("完成替换（未下载任何文件）"));
+        } catch (IOException e) {
+            logError("Error walking directory", e);
+        }
+    }
+     */
+
+    public void applyThroughputMode() {
+        fileDownloader.applyThroughputMode();
+    }
+
+    public void shutdown() {
+        fileDownloader.shutdown();
+        progressScheduler.shutdownNow();
+        closeMetrics(Metrics.setRegistry(null));
+    }
+
+    /**
+     * Starts a fresh registry for this sync if metrics are on, exporting to metrics.jsonl in the
+     * cache directory. The previous sync's registry stays readable until then.
+     */
+    private void startMetrics() {
+        MetricsRegistry registry = null;
+        if (appConfig.shouldRecordMetrics()) {
+            try {
+                registry = new MetricsRegistry(new JsonLinesExporter(cachePath.resolve("metrics.jsonl")));
+            } catch (IOException e) {
+                logError("无法写入性能数据文件", e);
+                registry = new MetricsRegistry();
+            }
+        }
+        closeMetrics(Metrics.setRegistry(registry));
+    }
+
+    private void closeMetrics(MetricsRegistry registry) {
+        if (registry == null) {
+            return;
+        }
+        try {
+            registry.close();
+        } catch (IOException e) {
+            logError("关闭性能数据文件时报错", e);
+        }
+    }
+
+    private void log(String message) {
+        listener.updateConsole(message);
+    }
+
+    private void logError(String message, Exception ex) {
+        listener.logErrorToConsole(message, ex);
+    }
+}
\ No newline at end of file
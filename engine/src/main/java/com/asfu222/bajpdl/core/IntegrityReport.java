@@ -0,0 +1,73 @@
+package com.asfu222.bajpdl.core;
+
+import com.asfu222.bajpdl.service.CommonCatalogItem;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of an {@link IntegrityScanner} pass over the game directory.
+ */
+public class IntegrityReport {
+    private static final double BYTES_TO_MB = 1024.0 * 1024.0;
+
+    /** Catalog entries with no file in the game directory, by catalog path. */
+    public final Map<String, CommonCatalogItem> missing;
+    /** Catalog entries whose file has the wrong size or CRC, by catalog path. */
+    public final Map<String, CommonCatalogItem> corrupt;
+    /** Files in the scanned directories that no catalog refers to, including leftover ".part" files. */
+    public final List<Path> orphaned;
+    public final int checkedFiles;
+    public final long hashedBytes;
+    public final long elapsedNanos;
+
+    public IntegrityReport(Map<String, CommonCatalogItem> missing, Map<String, CommonCatalogItem> corrupt, List<Path> orphaned,
+                           int checkedFiles, long hashedBytes, long elapsedNanos) {
+        this.missing = Collections.unmodifiableMap(missing);
+        this.corrupt = Collections.unmodifiableMap(corrupt);
+        this.orphaned = Collections.unmodifiableList(orphaned);
+        this.checkedFiles = checkedFiles;
+        this.hashedBytes = hashedBytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    public boolean isClean() {
+        return missing.isEmpty() && corrupt.isEmpty();
+    }
+
+    public double getFilesPerSecond() {
+        return elapsedNanos > 0 ? checkedFiles * 1e9 / elapsedNanos : 0;
+    }
+
+    public double getMBPerSecond() {
+        return elapsedNanos > 0 ? hashedBytes / BYTES_TO_MB * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * @return a console summary; lists at most {@code maxListed} paths per category
+     */
+    public String format(int maxListed) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("校验完成: %d 个文件, %.1f MB, 用时 %.1f 秒 (%.0f 文件/秒, %.1f MB/s)%n",
+                checkedFiles, hashedBytes / BYTES_TO_MB, elapsedNanos / 1e9, getFilesPerSecond(), getMBPerSecond()));
+        sb.append("缺失: ").append(missing.size()).append(", 损坏: ").append(corrupt.size())
+                .append(", 多余: ").append(orphaned.size()).append('\n');
+        appendPaths(sb, "缺失", missing.keySet(), maxListed);
+        appendPaths(sb, "损坏", corrupt.keySet(), maxListed);
+        appendPaths(sb, "多余", orphaned, maxListed);
+        return sb.toString();
+    }
+
+    private static void appendPaths(StringBuilder sb, String label, Iterable<?> paths, int maxListed) {
+        int listed = 0;
+        for (Object path : paths) {
+            if (listed++ == maxListed) {
+                sb.append("  ...\n");
+                break;
+            }
+            sb.append("  ").append(label).append(": ").append(path).append('\n');
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.asfu222.bajpdl.core;
+
+import com.asfu222.bajpdl.metrics.Metrics;
+import com.asfu222.bajpdl.metrics.Span;
+import com.asfu222.bajpdl.service.CommonCatalogItem;
+import com.asfu222.bajpdl.service.MXCatalog;
+import com.asfu222.bajpdl.util.FileEntry;
+import com.asfu222.bajpdl.util.FileUtils;
+import com.asfu222.bajpdl.util.GameFS;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Checks the installed game files against the catalogs already in the game directory, without
+ * downloading anything. Files are checked on a work-stealing pool, so a handful of large bundles
+ * does not leave the other threads idle; a file is only hashed when its size matches.
+ */
+public class IntegrityScanner {
+    static final List<String> CATALOGS = Arrays.asList(
+            "TableBundles/TableCatalog.bytes",
+            "MediaResources/Catalog/MediaCatalog.bytes",
+            "Android/bundleDownloadInfo.json");
+    static final List<String> HASH_FILES = Arrays.asList(
+            "TableBundles/TableCatalog.hash",
+            "MediaResources/Catalog/MediaCatalog.hash",
+            "Android/bundleDownloadInfo.hash");
+    // Entries per leaf task; small so idle threads can steal the rest of a range stuck behind a big file
+    private static final int LEAF_SIZE = 4;
+
+    private final int parallelism;
+    private final BiConsumer<String, Exception> handler;
+
+    public IntegrityScanner(int parallelism, BiConsumer<String, Exception> handler) {
+        this.parallelism = Math.max(parallelism, 1);
+        this.handler = handler;
+    }
+
+    /**
+     * @param progress counts each checked file and its catalog size, so the scan shows up like a download
+     * @throws IOException if no cached catalog could be read or a directory could not be listed
+     */
+    public IntegrityReport scan(ProgressPublisher progress) throws IOException {
+        long startNanos = System.nanoTime();
+        Map<String, CommonCatalogItem> catalog = loadCachedCatalogs();
+        if (catalog.isEmpty()) {
+            throw new IOException("未找到已缓存的资源目录，请先更新资源");
+        }
+
+        // In-game path of every entry, and the top-level directories they live in
+        Map<Path, String> expected = new HashMap<>();
+        Set<Path> roots = new LinkedHashSet<>();
+        long totalSize = 0;
+        for (Map.Entry<String, CommonCatalogItem> entry : catalog.entrySet()) {
+            expected.put(FileUtils.getInGamePath(entry.getKey(), entry.getValue().crc), entry.getKey());
+            roots.add(FileUtils.getGameRoot().resolve(FileUtils.mapToInGamePath(entry.getKey()).split("/")[0]));
+            totalSize += entry.getValue().size;
+        }
+        Set<Path> known = new HashSet<>();
+        for (String file : CATALOGS) {
+            known.add(FileUtils.getInGamePath(file));
+        }
+        for (String file : HASH_FILES) {
+            known.add(FileUtils.getInGamePath(file));
+        }
+        progress.addTotal(expected.size(), totalSize);
+
+        Map<String, CommonCatalogItem> missing = new ConcurrentHashMap<>();
+        Map<String, CommonCatalogItem> corrupt = new ConcurrentHashMap<>();
+        LongAdder hashedBytes = new LongAdder();
+        AtomicInteger checked = new AtomicInteger();
+        // Listed with sizes, so only files whose size matches cost another round trip (to hash them)
+        Map<Path, FileEntry> present = new ConcurrentHashMap<>();
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            try (Span ignored = Metrics.span("scan.list", FileUtils.getGameRoot().toString())) {
+                List<ForkJoinTask<?>> listings = new ArrayList<>();
+                for (Path root : roots) {
+                    listings.add(ForkJoinTask.adapt(() -> list(root, present)));
+                }
+                pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(listings)));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            List<Map.Entry<Path, String>> entries = new ArrayList<>(expected.entrySet());
+            pool.invoke(new CheckTask(entries, 0, entries.size(), entry -> {
+                CommonCatalogItem item = catalog.get(entry.getValue());
+                FileEntry file = present.get(entry.getKey());
+                try {
+                    if (file == null || file.directory) {
+                        missing.put(entry.getValue(), item);
+                    } else if ((file.hasSize() ? file.size : GameFS.size(entry.getKey())) != item.size) {
+                        corrupt.put(entry.getValue(), item);
+                    } else {
+                        long crc;
+                        try (Span ignored = Metrics.timer("scan.hash")) {
+                            crc = GameFS.crc32(entry.getKey());
+                        }
+                        hashedBytes.add(item.size);
+                        if (crc != item.crc) {
+                            corrupt.put(entry.getValue(), item);
+                        }
+                    }
+                } catch (IOException e) {
+                    handler.accept("校验文件时报错: " + entry.getValue(), e);
+                    corrupt.put(entry.getValue(), item);
+                }
+                checked.incrementAndGet();
+                progress.getDownloadedBytes().add(item.size);
+                progress.fileCompleted();
+            }));
+        } finally {
+            pool.shutdown();
+        }
+
+        // Any listed file that is not an entry or a catalog
+        List<Path> orphaned = new ArrayList<>();
+        for (FileEntry file : present.values()) {
+            if (!file.directory && !expected.containsKey(file.path) && !known.contains(file.path)) {
+                orphaned.add(file.path);
+            }
+        }
+        orphaned.sort(null);
+
+        long elapsedNanos = System.nanoTime() - startNanos;
+        Metrics.recordNanos("scan", elapsedNanos);
+        return new IntegrityReport(new TreeMap<>(missing), new TreeMap<>(corrupt), orphaned,
+                checked.get(), hashedBytes.sum(), elapsedNanos);
+    }
+
+    private Map<String, CommonCatalogItem> loadCachedCatalogs() {
+        Map<String, CommonCatalogItem> catalog = new HashMap<>();
+        for (String catalogPath : CATALOGS) {
+            Path path = FileUtils.getInGamePath(catalogPath);
+            try {
+                if (!GameFS.exists(path)) {
+                    continue;
+                }
+                byte[] bytes = GameFS.readAllBytes(path);
+                switch (catalogPath) {
+                    case "TableBundles/TableCatalog.bytes":
+                        catalog.putAll(MXCatalog.parseMemoryPackerBytes(bytes, false).getData());
+                        break;
+                    case "MediaResources/Catalog/MediaCatalog.bytes":
+                        catalog.putAll(MXCatalog.parseMemoryPackerBytes(bytes, true).getData());
+                        break;
+                    default:
+                        catalog.putAll(MXCatalog.parseBundleDLInfoJson(bytes).getData());
+                        break;
+                }
+            } catch (IOException | JSONException e) {
+                handler.accept("读取已缓存的资源目录时报错: " + catalogPath, e);
+            }
+        }
+        return catalog;
+    }
+
+    private static void list(Path root, Map<Path, FileEntry> present) {
+        try {
+            if (!GameFS.exists(root)) {
+                return;
+            }
+            try (Stream<FileEntry> files = GameFS.list(root)) {
+                files.forEach(file -> present.put(file.path, file));
+            }
+        } catch (IOException | UncheckedIOException e) {
+            throw new UncheckedIOException(new IOException("列出文件夹时报错: " + root, e));
+        }
+    }
+
+    private interface Check {
+        void run(Map.Entry<Path, String> entry);
+    }
+
+    // Never serialized; RecursiveAction is Serializable only through ForkJoinTask
+    @SuppressWarnings("serial")
+    private static class CheckTask extends RecursiveAction {
+        private final List<Map.Entry<Path, String>> entries;
+        private final int from;
+        private final int to;
+        private final Check check;
+
+        CheckTask(List<Map.Entry<Path, String>> entries, int from, int to, Check check) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.check = check;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                for (int i = from; i < to; i++) {
+                    check.run(entries.get(i));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new CheckTask(entries, from, mid, check), new CheckTask(entries, mid, to, check));
+        }
+    }
+}
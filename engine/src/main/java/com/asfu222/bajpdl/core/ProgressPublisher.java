@@ -0,0 +1,138 @@
+package com.asfu222.bajpdl.core;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Owns the download progress counters and turns them into {@link ProgressSnapshot}s. Workers only
+ * touch striped counters; a scheduled tick samples them into a sliding window for MB/s, per-mirror
+ * rates and ETA, and publishes only when the visible progress changed (or every few seconds, so a
+ * stalled rate still shows).
+ */
+public class ProgressPublisher {
+    private static final long TICK_MILLIS = 250;
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long MB = 1024 * 1024;
+
+    private static class Sample {
+        final long nanos;
+        final long bytes;
+        final Map<String, Long> mirrorBytes;
+
+        Sample(long nanos, long bytes, Map<String, Long> mirrorBytes) {
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.mirrorBytes = mirrorBytes;
+        }
+    }
+
+    private final Consumer<ProgressSnapshot> sink;
+    private final Supplier<Map<String, Long>> mirrorBytes;
+    private final LongAdder downloadedBytes = new LongAdder();
+    private final AtomicInteger downloadedFiles = new AtomicInteger();
+    private final AtomicInteger totalFiles = new AtomicInteger();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    // Only touched from publish(), which is synchronized
+    private final Deque<Sample> window = new ArrayDeque<>();
+    private long[] lastVisible;
+    private long lastPublishNanos;
+    private ScheduledFuture<?> task;
+
+    /**
+     * @param mirrorBytes cumulative bytes received per mirror, sampled once per tick
+     */
+    public ProgressPublisher(Consumer<ProgressSnapshot> sink, Supplier<Map<String, Long>> mirrorBytes) {
+        this.sink = sink;
+        this.mirrorBytes = mirrorBytes;
+    }
+
+    /**
+     * The counter workers add received bytes to.
+     */
+    public LongAdder getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    public void reset() {
+        downloadedBytes.reset();
+        downloadedFiles.set(0);
+        totalFiles.set(0);
+        totalBytes.set(0);
+        synchronized (this) {
+            window.clear();
+            lastVisible = null;
+        }
+    }
+
+    public void addTotal(int files, long bytes) {
+        totalFiles.addAndGet(files);
+        totalBytes.addAndGet(bytes);
+    }
+
+    public void fileCompleted() {
+        downloadedFiles.incrementAndGet();
+    }
+
+    public synchronized void start(ScheduledExecutorService scheduler) {
+        stop();
+        task = scheduler.scheduleWithFixedDelay(() -> publish(false), 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    /**
+     * Samples the counters and publishes if anything visible changed.
+     *
+     * @param force publish even if nothing changed, e.g. for the final state
+     */
+    public synchronized void publish(boolean force) {
+        long now = System.nanoTime();
+        long bytes = downloadedBytes.sum();
+        Map<String, Long> mirrors = mirrorBytes.get();
+        window.addLast(new Sample(now, bytes, mirrors));
+        while (window.size() > 2 && now - window.peekFirst().nanos > WINDOW_NANOS) {
+            window.removeFirst();
+        }
+
+        int files = downloadedFiles.get();
+        int total = totalFiles.get();
+        long totalSize = totalBytes.get();
+        // What the user sees: file counts and whole megabytes
+        long[] visible = {files, total, bytes / MB, totalSize / MB};
+        if (!force && Arrays.equals(visible, lastVisible) && now - lastPublishNanos < HEARTBEAT_NANOS) {
+            return;
+        }
+        lastVisible = visible;
+        lastPublishNanos = now;
+
+        Sample oldest = window.peekFirst();
+        double seconds = (now - oldest.nanos) / 1e9;
+        double rate = seconds > 0 ? Math.max(bytes - oldest.bytes, 0) / seconds : 0;
+        Map<String, Double> mirrorRates = new HashMap<>();
+        for (Map.Entry<String, Long> mirror : mirrors.entrySet()) {
+            long before = oldest.mirrorBytes.getOrDefault(mirror.getKey(), 0L);
+            mirrorRates.put(mirror.getKey(), seconds > 0 ? Math.max(mirror.getValue() - before, 0) / seconds : 0);
+        }
+        long remaining = totalSize - bytes;
+        long eta = rate > 0 && remaining >= 0 ? (long) Math.ceil(remaining / rate) : -1;
+        sink.accept(new ProgressSnapshot(files, total, bytes, totalSize, rate, eta, mirrorRates));
+    }
+}
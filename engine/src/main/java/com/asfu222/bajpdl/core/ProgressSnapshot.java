@@ -0,0 +1,55 @@
+package com.asfu222.bajpdl.core;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Progress of the current download, as published by {@link ProgressPublisher}. Rates are averaged
+ * over the publisher's sliding window.
+ */
+public class ProgressSnapshot {
+    private static final double BYTES_TO_MB = 1024.0 * 1024.0;
+
+    public final int downloadedFiles;
+    public final int totalFiles;
+    public final long downloadedBytes;
+    public final long totalBytes;
+    public final double bytesPerSecond;
+    /** Seconds until done at the current rate, or -1 if unknown. */
+    public final long etaSeconds;
+    public final Map<String, Double> mirrorBytesPerSecond;
+
+    public ProgressSnapshot(int downloadedFiles, int totalFiles, long downloadedBytes, long totalBytes,
+                            double bytesPerSecond, long etaSeconds, Map<String, Double> mirrorBytesPerSecond) {
+        this.downloadedFiles = downloadedFiles;
+        this.totalFiles = totalFiles;
+        this.downloadedBytes = downloadedBytes;
+        this.totalBytes = totalBytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.etaSeconds = etaSeconds;
+        this.mirrorBytesPerSecond = Collections.unmodifiableMap(mirrorBytesPerSecond);
+    }
+
+    public int getPercent() {
+        return totalBytes > 0 ? (int) (downloadedBytes * 100 / totalBytes) : 0;
+    }
+
+    /**
+     * e.g. "速度: 12.3 MB/s, 剩余 01:05" followed by one line per mirror that is currently sending data.
+     */
+    public String formatThroughput() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "速度: %.1f MB/s", bytesPerSecond / BYTES_TO_MB));
+        if (etaSeconds >= 0) {
+            sb.append(String.format(Locale.ROOT, ", 剩余 %02d:%02d", etaSeconds / 60, etaSeconds % 60));
+        }
+        for (Map.Entry<String, Double> mirror : new TreeMap<>(mirrorBytesPerSecond).entrySet()) {
+            if (mirror.getValue() > 0) {
+                String name = mirror.getKey().replaceFirst("^https?://", "");
+                sb.append(String.format(Locale.ROOT, "%n  %s: %.1f MB/s", name, mirror.getValue() / BYTES_TO_MB));
+            }
+        }
+        return sb.toString();
+    }
+}
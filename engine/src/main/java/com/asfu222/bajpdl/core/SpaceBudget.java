@@ -0,0 +1,94 @@
+package com.asfu222.bajpdl.core;
+
+import com.asfu222.bajpdl.service.CommonCatalogItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Free space shared by every file of a run. A file starts only when what it adds fits in what is
+ * left, and gives back what its install frees when it finishes (or what it added, if it failed),
+ * so downloads running side by side never take the disk past full. Old versions are only deleted
+ * after their replacement is installed, so a file that has to wait never loses its old version.
+ */
+public class SpaceBudget implements BoundedScheduler.Admission<Map.Entry<String, CommonCatalogItem>> {
+    // Android starts failing writes and stopping apps before the disk is completely full
+    static final long RESERVE = 64L * 1024 * 1024;
+
+    private final Map<String, SpacePlan.Change> changes = new ConcurrentHashMap<>();
+    private final List<Runnable> waiting = new ArrayList<>(); // guarded by this
+    private long available; // guarded by this
+    private long reserved; // guarded by this
+
+    /**
+     * @param usable bytes free on the game's filesystem now
+     */
+    public SpaceBudget(long usable) {
+        this.available = usable - RESERVE;
+    }
+
+    /**
+     * Adds a catalog's plan; reclaimed bytes are credited right away.
+     */
+    public void add(SpacePlan plan, long reclaimed) {
+        changes.putAll(plan.getChanges());
+        release(reclaimed);
+    }
+
+    /**
+     * @return bytes that can still be added without running the disk full
+     */
+    public synchronized long getAvailable() {
+        return available;
+    }
+
+    private long cost(Map.Entry<String, CommonCatalogItem> item) {
+        SpacePlan.Change change = changes.get(item.getKey());
+        return change != null ? change.added : item.getValue().size;
+    }
+
+    @Override
+    public boolean tryAdmit(Map.Entry<String, CommonCatalogItem> item, Runnable wakeUp) {
+        long cost = cost(item);
+        if (cost == 0) {
+            return true;
+        }
+        synchronized (this) {
+            // With nothing else running no space is coming back, so a file too large to fit gets its chance anyway
+            if (cost <= available || reserved == 0) {
+                available -= cost;
+                reserved += cost;
+                return true;
+            }
+            waiting.add(wakeUp);
+            return false;
+        }
+    }
+
+    @Override
+    public void finished(Map.Entry<String, CommonCatalogItem> item, boolean success) {
+        long cost = cost(item);
+        if (cost == 0) {
+            return;
+        }
+        SpacePlan.Change change = changes.get(item.getKey());
+        synchronized (this) {
+            reserved -= cost;
+        }
+        release(success ? (change != null ? change.freed : 0) : cost);
+    }
+
+    private void release(long bytes) {
+        List<Runnable> wake;
+        synchronized (this) {
+            available += bytes;
+            wake = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (Runnable runnable : wake) {
+            runnable.run();
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.asfu222.bajpdl.core;
+
+import com.asfu222.bajpdl.service.CommonCatalogItem;
+import com.asfu222.bajpdl.util.FileEntry;
+import com.asfu222.bajpdl.util.FileUtils;
+import com.asfu222.bajpdl.util.GameFS;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+/**
+ * What a set of catalog entries will do to the game directory, worked out from one listing of it
+ * before anything is downloaded: per file the bytes it adds and the bytes its install frees
+ * (the version it replaces), and per directory the totals. Files left behind by earlier runs
+ * that can go right away, such as ".part" files and versions already replaced, are listed too.
+ */
+public class SpacePlan {
+    private static final double BYTES_TO_MB = 1024.0 * 1024.0;
+
+    /** A file's effect on disk usage. */
+    public static class Change {
+        /** Bytes written for it, as its ".part" file; 0 when the installed file is kept. */
+        public final long added;
+        /** Bytes of older versions that go once it is installed. */
+        public final long freed;
+
+        Change(long added, long freed) {
+            this.added = added;
+            this.freed = freed;
+        }
+    }
+
+    private final Map<String, Change> changes;
+    private final Map<Path, long[]> directories; // {added, freed}
+    private final List<Path> reclaimable;
+    private final long reclaimableBytes;
+
+    /** Whether a file is kept as it is rather than downloaded again. */
+    public interface Check {
+        boolean isUpToDate(String catalogPath, CommonCatalogItem item) throws IOException;
+    }
+
+    private SpacePlan(Map<String, Change> changes, Map<Path, long[]> directories, List<Path> reclaimable, long reclaimableBytes) {
+        this.changes = changes;
+        this.directories = directories;
+        this.reclaimable = reclaimable;
+        this.reclaimableBytes = reclaimableBytes;
+    }
+
+    /**
+     * Lists the directories the files install to and plans each file against what is there.
+     *
+     * @param upToDate asked for installed files with the catalog size, which may still differ in content
+     * @throws IOException if a directory could not be listed
+     */
+    public static SpacePlan build(Map<String, CommonCatalogItem> files, Check upToDate) throws IOException {
+        // In-game path of every file, and the top-level directories they live in
+        Map<String, Path> targets = new HashMap<>();
+        Set<Path> roots = new LinkedHashSet<>();
+        for (Map.Entry<String, CommonCatalogItem> entry : files.entrySet()) {
+            targets.put(entry.getKey(), FileUtils.getInGamePath(entry.getKey(), entry.getValue().crc));
+            roots.add(FileUtils.getGameRoot().resolve(FileUtils.mapToInGamePath(entry.getKey()).split("/")[0]));
+        }
+
+        // Installed files by directory and version prefix (the name up to its last '_'), as the cleanup after an install matches them
+        Map<Path, Map<String, List<FileEntry>>> installed = new HashMap<>();
+        for (Path root : roots) {
+            if (!GameFS.exists(root)) {
+                continue;
+            }
+            try (Stream<FileEntry> listing = GameFS.list(root)) {
+                listing.filter(file -> !file.directory).forEach(file -> installed
+                        .computeIfAbsent(file.path.getParent(), k -> new HashMap<>())
+                        .computeIfAbsent(versionPrefix(file.path.getFileName().toString()), k -> new ArrayList<>())
+                        .add(file));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        // Never reclaim a file some entry installs to, even one that looks like another's old version
+        Set<Path> wanted = new HashSet<>(targets.values());
+        Map<String, Change> changes = new HashMap<>();
+        Map<Path, long[]> directories = new TreeMap<>();
+        List<Path> reclaimable = new ArrayList<>();
+        long reclaimableBytes = 0;
+        for (Map.Entry<String, CommonCatalogItem> entry : files.entrySet()) {
+            CommonCatalogItem item = entry.getValue();
+            Path target = targets.get(entry.getKey());
+            String name = target.getFileName().toString();
+            List<FileEntry> versions = installed.getOrDefault(target.getParent(), Map.of())
+                    .getOrDefault(versionPrefix(name), List.of());
+
+            FileEntry current = null;
+            long others = 0;
+            List<FileEntry> stale = new ArrayList<>();
+            for (FileEntry file : versions) {
+                String fileName = file.path.getFileName().toString();
+                if (fileName.equals(name)) {
+                    current = file;
+                } else if (fileName.equals(name + ".part")) {
+                    // Left by an interrupted download; this run starts it over anyway
+                    stale.add(file);
+                } else if (!fileName.endsWith(".part") && !wanted.contains(file.path)) {
+                    others += size(file);
+                    stale.add(file);
+                }
+            }
+
+            Change change;
+            if (current != null && size(current) == item.size && upToDate.isUpToDate(entry.getKey(), item)) {
+                // Kept as it is; older versions next to it were only missed by a cleanup
+                change = new Change(0, 0);
+                for (FileEntry file : stale) {
+                    reclaimable.add(file.path);
+                    reclaimableBytes += size(file);
+                }
+            } else {
+                // The download writes a full ".part" file, then replaces the current file and its cleanup removes the older versions
+                change = new Change(item.size, (current != null ? size(current) : 0) + others);
+                for (FileEntry file : stale) {
+                    if (file.path.getFileName().toString().endsWith(".part")) {
+                        reclaimable.add(file.path);
+                        reclaimableBytes += size(file);
+                    }
+                }
+            }
+            changes.put(entry.getKey(), change);
+            long[] totals = directories.computeIfAbsent(target.getParent(), k -> new long[2]);
+            totals[0] += change.added;
+            totals[1] += change.freed;
+        }
+        return new SpacePlan(changes, directories, reclaimable, reclaimableBytes);
+    }
+
+    private static String versionPrefix(String name) {
+        if (name.endsWith(".part")) {
+            name = name.substring(0, name.length() - ".part".length());
+        }
+        int underscore = name.lastIndexOf('_');
+        return underscore > 0 ? name.substring(0, underscore) : name;
+    }
+
+    private static long size(FileEntry file) throws IOException {
+        return file.hasSize() ? file.size : GameFS.size(file.path);
+    }
+
+    /**
+     * @return the file's effect, or null if it was not part of the plan
+     */
+    public Change get(String catalogPath) {
+        return changes.get(catalogPath);
+    }
+
+    public Map<String, Change> getChanges() {
+        return changes;
+    }
+
+    public long getAdded() {
+        long added = 0;
+        for (long[] totals : directories.values()) {
+            added += totals[0];
+        }
+        return added;
+    }
+
+    public long getFreed() {
+        long freed = 0;
+        for (long[] totals : directories.values()) {
+            freed += totals[1];
+        }
+        return freed;
+    }
+
+    public long getReclaimableBytes() {
+        return reclaimableBytes;
+    }
+
+    /**
+     * @return the most any single file adds, the least headroom installing it needs
+     */
+    public long getLargestAdded() {
+        long largest = 0;
+        for (Change change : changes.values()) {
+            largest = Math.max(largest, change.added);
+        }
+        return largest;
+    }
+
+    /**
+     * Deletes the files that can go before anything is downloaded.
+     *
+     * @return bytes freed
+     */
+    public long reclaim(BiConsumer<String, Exception> handler) {
+        long freed = 0;
+        for (Path path : reclaimable) {
+            try {
+                long size = GameFS.size(path);
+                GameFS.deleteIfExists(path);
+                freed += size;
+            } catch (IOException e) {
+                handler.accept("删除旧文件时报错: " + path, e);
+            }
+        }
+        return freed;
+    }
+
+    /**
+     * Puts the files whose install frees more than it adds first, the ones freeing most leading,
+     * so space they release is there for the rest; the others keep their order.
+     */
+    public List<String> order(List<String> catalogPaths) {
+        List<String> freeing = new ArrayList<>();
+        List<String> rest = new ArrayList<>();
+        for (String path : catalogPaths) {
+            Change change = changes.get(path);
+            if (change != null && change.added > 0 && change.freed >= change.added) {
+                freeing.add(path);
+            } else {
+                rest.add(path);
+            }
+        }
+        if (freeing.isEmpty()) {
+            return catalogPaths;
+        }
+        freeing.sort((p1, p2) -> Long.compare(net(p2), net(p1)));
+        freeing.addAll(rest);
+        return freeing;
+    }
+
+    private long net(String path) {
+        Change change = changes.get(path);
+        return change.freed - change.added;
+    }
+
+    /**
+     * @return per directory the bytes to download and to free, then the totals
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Path, long[]> entry : directories.entrySet()) {
+            long[] totals = entry.getValue();
+            if (totals[0] == 0 && totals[1] == 0) {
+                continue;
+            }
+            sb.append(String.format("  %s: 写入 %.1f MB, 释放 %.1f MB%n", FileUtils.getGameRoot().relativize(entry.getKey()),
+                    totals[0] / BYTES_TO_MB, totals[1] / BYTES_TO_MB));
+        }
+        sb.append(String.format("共需写入 %.1f MB, 安装后释放 %.1f MB, 可立即清理 %.1f MB",
+                getAdded() / BYTES_TO_MB, getFreed() / BYTES_TO_MB, reclaimableBytes / BYTES_TO_MB));
+        return sb.toString();
+    }
+}
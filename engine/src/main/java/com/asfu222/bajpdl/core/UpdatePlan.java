@@ -0,0 +1,234 @@
+package com.asfu222.bajpdl.core;
+
+import com.asfu222.bajpdl.service.CommonCatalogItem;
+import com.asfu222.bajpdl.service.MXCatalog;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * What an update would do, worked out by {@link GameFileManager#planUpdate()} without touching the
+ * game directory: per catalog the files and bytes to download and the ones already installed, and
+ * how long it should take at the rates the mirrors reached in earlier runs. Keeps the fetched and
+ * parsed catalogs, so {@link GameFileManager#execute(UpdatePlan)} carries it out without fetching
+ * or parsing them again. A plan is executed at most once.
+ */
+public class UpdatePlan {
+    private static final double BYTES_TO_MB = 1024.0 * 1024.0;
+
+    /** One catalog's share of the update. */
+    public static class Category {
+        public final String catalogPath;
+        /** Entries of the catalog the update covers */
+        public final int files;
+        public final int downloads;
+        public final long downloadBytes;
+        /** Bytes of older versions that go once the downloads are installed */
+        public final long freedBytes;
+
+        Category(String catalogPath, int files, int downloads, long downloadBytes, long freedBytes) {
+            this.catalogPath = catalogPath;
+            this.files = files;
+            this.downloads = downloads;
+            this.downloadBytes = downloadBytes;
+            this.freedBytes = freedBytes;
+        }
+    }
+
+    /** A fetched catalog, staged outside the game and ready to be processed. */
+    static class Catalog {
+        final String catalogPath;
+        final Path file;
+        final String hashPath;
+        final Path hashFile;
+        final MXCatalog catalog;
+        final SpacePlan space; // null if the game directory could not be listed
+        final Category category;
+        final Map<String, Long> mirrorBytes; // bytes to download from each mirror
+
+        /**
+         * @param space       decides which files are kept, by the same check the download makes;
+         *                    if null, every file counts as a download
+         * @param firstMirror the mirror a file is downloaded from
+         */
+        Catalog(String catalogPath, Path file, String hashPath, Path hashFile, MXCatalog catalog, SpacePlan space,
+                Function<String, String> firstMirror) {
+            this.catalogPath = catalogPath;
+            this.file = file;
+            this.hashPath = hashPath;
+            this.hashFile = hashFile;
+            this.catalog = catalog;
+            this.space = space;
+
+            Map<String, Long> mirrorBytes = new HashMap<>();
+            int downloads = 0;
+            long downloadBytes = 0;
+            for (Map.Entry<String, CommonCatalogItem> entry : catalog.getData().entrySet()) {
+                SpacePlan.Change change = space != null ? space.get(entry.getKey()) : null;
+                if (change != null && change.added == 0) {
+                    continue;
+                }
+                downloads++;
+                downloadBytes += entry.getValue().size;
+                mirrorBytes.merge(firstMirror.apply(entry.getKey()), entry.getValue().size, Long::sum);
+            }
+            this.mirrorBytes = mirrorBytes;
+            this.category = new Category(catalogPath, catalog.getData().size(), downloads, downloadBytes,
+                    space != null ? space.getFreed() : 0);
+        }
+    }
+
+    private final List<Catalog> catalogs;
+    private final long usableSpace;
+    private final long estimatedSeconds;
+    private final AtomicBoolean executed = new AtomicBoolean();
+
+    /**
+     * @param usableSpace free space on the game's filesystem, -1 if unknown
+     * @param mirrorRate  bytes per second each mirror delivered in earlier runs, 0 if never measured
+     * @param rateLimit   the configured download limit in bytes per second, 0 if none
+     */
+    UpdatePlan(List<Catalog> catalogs, long usableSpace, ToDoubleFunction<String> mirrorRate, long rateLimit) {
+        this.catalogs = catalogs;
+        this.usableSpace = usableSpace;
+        this.estimatedSeconds = estimate(catalogs, mirrorRate, rateLimit);
+    }
+
+    /**
+     * Mirrors serve their files side by side, so the update takes as long as the slowest mirror
+     * needs for its share. Mirrors never measured are assumed to be as fast as the measured ones
+     * on average.
+     *
+     * @return seconds, or -1 if no mirror was ever measured
+     */
+    private static long estimate(List<Catalog> catalogs, ToDoubleFunction<String> mirrorRate, long rateLimit) {
+        Map<String, Long> mirrorBytes = new HashMap<>();
+        long total = 0;
+        for (Catalog catalog : catalogs) {
+            catalog.mirrorBytes.forEach((mirror, bytes) -> mirrorBytes.merge(mirror, bytes, Long::sum));
+            total += catalog.category.downloadBytes;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        double seconds = 0;
+        double rateSum = 0;
+        int rated = 0;
+        long unratedBytes = 0;
+        for (Map.Entry<String, Long> entry : mirrorBytes.entrySet()) {
+            double rate = mirrorRate.applyAsDouble(entry.getKey());
+            if (rate > 0) {
+                seconds = Math.max(seconds, entry.getValue() / rate);
+                rateSum += rate;
+                rated++;
+            } else {
+                unratedBytes += entry.getValue();
+            }
+        }
+        if (unratedBytes > 0) {
+            if (rated == 0) {
+                return -1;
+            }
+            seconds = Math.max(seconds, unratedBytes / (rateSum / rated));
+        }
+        if (rateLimit > 0) {
+            seconds = Math.max(seconds, (double) total / rateLimit);
+        }
+        return (long) Math.ceil(seconds);
+    }
+
+    List<Catalog> getCatalogs() {
+        return catalogs;
+    }
+
+    /**
+     * @return false if the plan was executed before
+     */
+    boolean markExecuted() {
+        return executed.compareAndSet(false, true);
+    }
+
+    public List<Category> getCategories() {
+        List<Category> categories = new ArrayList<>(catalogs.size());
+        for (Catalog catalog : catalogs) {
+            categories.add(catalog.category);
+        }
+        return Collections.unmodifiableList(categories);
+    }
+
+    public int getDownloads() {
+        int downloads = 0;
+        for (Catalog catalog : catalogs) {
+            downloads += catalog.category.downloads;
+        }
+        return downloads;
+    }
+
+    public long getDownloadBytes() {
+        long bytes = 0;
+        for (Catalog catalog : catalogs) {
+            bytes += catalog.category.downloadBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the expected duration in seconds, or -1 if no mirror was measured in an earlier run
+     */
+    public long getEstimatedSeconds() {
+        return estimatedSeconds;
+    }
+
+    /**
+     * @return the bytes the game directory has to have free, the growth plus the largest single file
+     */
+    public long getNeededSpace() {
+        long added = 0;
+        long freed = 0;
+        long largest = 0;
+        for (Catalog catalog : catalogs) {
+            if (catalog.space != null) {
+                added += catalog.space.getAdded();
+                freed += catalog.space.getFreed() + catalog.space.getReclaimableBytes();
+                largest = Math.max(largest, catalog.space.getLargestAdded());
+            }
+        }
+        return Math.max(added - freed, 0) + largest;
+    }
+
+    /**
+     * @return per catalog what is downloaded, then the totals, the space and the expected time
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder("更新计划:\n");
+        long freed = 0;
+        for (Catalog catalog : catalogs) {
+            Category category = catalog.category;
+            sb.append(String.format("  %s: 下载 %d / %d 个文件, %.1f MB%n", category.catalogPath,
+                    category.downloads, category.files, category.downloadBytes / BYTES_TO_MB));
+            freed += category.freedBytes;
+        }
+        sb.append(String.format("共下载 %d 个文件, %.1f MB, 安装后释放 %.1f MB", getDownloads(), getDownloadBytes() / BYTES_TO_MB, freed / BYTES_TO_MB));
+        if (usableSpace >= 0) {
+            sb.append(String.format(", 剩余空间 %.1f MB", usableSpace / BYTES_TO_MB));
+            if (getNeededSpace() > usableSpace) {
+                sb.append(String.format("（可能不足，约需 %.1f MB）", getNeededSpace() / BYTES_TO_MB));
+            }
+        }
+        sb.append('\n');
+        if (estimatedSeconds >= 0) {
+            sb.append(String.format(Locale.ROOT, "预计用时 %02d:%02d（按以往的下载速度）", estimatedSeconds / 60, estimatedSeconds % 60));
+        } else {
+            sb.append("暂无以往的下载速度，无法估计用时");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package com.asfu222.bajpdl.metrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends one JSON object per line: a {@code span} event for every traced span and a
+ * {@code snapshot} with all counters and histograms on each {@link MetricsRegistry#flush()}.
+ */
+public class JsonLinesExporter implements MetricsRegistry.Sink {
+    private final Writer writer;
+    private boolean failed;
+
+    public JsonLinesExporter(Path file) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    @Override
+    public void onSpan(Span span, long durationNanos) {
+        try {
+            JSONObject event = new JSONObject()
+                    .put("type", "span")
+                    .put("name", span.getName())
+                    .put("ts", span.getStartMillis())
+                    .put("durNs", durationNanos)
+                    .put("thread", Thread.currentThread().getName())
+                    .put("ok", !span.isFailed());
+            if (span.getDetail() != null) {
+                event.put("detail", span.getDetail());
+            }
+            write(event);
+        } catch (JSONException ignored) {
+            // Only thrown for non-finite numbers, which spans never carry
+        }
+    }
+
+    @Override
+    public void onSnapshot(MetricsRegistry registry) {
+        try {
+            write(registry.toJson().put("type", "snapshot").put("ts", System.currentTimeMillis()));
+        } catch (JSONException ignored) {
+            // Only thrown for non-finite numbers, which metrics never carry
+        }
+        synchronized (this) {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                failed = true;
+            }
+        }
+    }
+
+    private synchronized void write(JSONObject event) {
+        if (failed) {
+            return;
+        }
+        try {
+            writer.write(event.toString());
+            writer.write('\n');
+        } catch (IOException e) {
+            // A full disk must not fail the download; just stop exporting
+            failed = true;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,79 @@
+package com.asfu222.bajpdl.metrics;
+
+/**
+ * Static entry point for engine instrumentation. With no registry installed every call is a single
+ * volatile read and returns immediately, so call sites don't need their own enabled checks.
+ *
+ * <pre>
+ * try (Span span = Metrics.span("file.verify", relPath)) {
+ *     ...
+ * }
+ * Metrics.count("mirror.bytes", mirror, bytes);
+ * </pre>
+ */
+public final class Metrics {
+    private static volatile MetricsRegistry registry;
+
+    private Metrics() {
+    }
+
+    /**
+     * Installs the registry every call records into, or disables metrics with null.
+     *
+     * @return the previous registry, which the caller is responsible for closing
+     */
+    public static MetricsRegistry setRegistry(MetricsRegistry value) {
+        MetricsRegistry previous = registry;
+        registry = value;
+        return previous;
+    }
+
+    public static MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    public static boolean isEnabled() {
+        return registry != null;
+    }
+
+    public static void count(String name, long delta) {
+        MetricsRegistry r = registry;
+        if (r != null) {
+            r.count(name, delta);
+        }
+    }
+
+    /**
+     * Counts into {@code name[tag]}, e.g. one counter per mirror.
+     */
+    public static void count(String name, String tag, long delta) {
+        MetricsRegistry r = registry;
+        if (r != null) {
+            r.count(name + "[" + tag + "]", delta);
+        }
+    }
+
+    public static void recordNanos(String name, long nanos) {
+        MetricsRegistry r = registry;
+        if (r != null) {
+            r.record(name, nanos);
+        }
+    }
+
+    /**
+     * Starts a span that is recorded into the {@code name} histogram and exported as a trace event
+     * when closed.
+     */
+    public static Span span(String name, String detail) {
+        MetricsRegistry r = registry;
+        return r != null ? new Span(r, name, detail, true) : Span.NOOP;
+    }
+
+    /**
+     * Like {@link #span} but only feeds the histogram, for calls too frequent to trace one by one.
+     */
+    public static Span timer(String name) {
+        MetricsRegistry r = registry;
+        return r != null ? new Span(r, name, null, false) : Span.NOOP;
+    }
+}
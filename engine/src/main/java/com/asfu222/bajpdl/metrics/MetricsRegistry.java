@@ -0,0 +1,111 @@
+package com.asfu222.bajpdl.metrics;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and duration histograms for one sync, plus an optional {@link Sink} that receives every
+ * traced span as it finishes.
+ */
+public class MetricsRegistry implements Closeable {
+    private static final double NANOS_TO_MILLIS = 1e-6;
+
+    public interface Sink extends Closeable {
+        void onSpan(Span span, long durationNanos);
+
+        void onSnapshot(MetricsRegistry registry);
+    }
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Sink sink;
+
+    public MetricsRegistry() {
+        this(null);
+    }
+
+    public MetricsRegistry(Sink sink) {
+        this.sink = sink;
+    }
+
+    public void count(String key, long delta) {
+        counters.computeIfAbsent(key, k -> new LongAdder()).add(delta);
+    }
+
+    public void record(String key, long nanos) {
+        histograms.computeIfAbsent(key, k -> new Histogram()).record(nanos);
+    }
+
+    void finishSpan(Span span, long durationNanos, boolean traced) {
+        record(span.isFailed() ? span.getName() + ".failed" : span.getName(), durationNanos);
+        if (traced && sink != null) {
+            sink.onSpan(span, durationNanos);
+        }
+    }
+
+    public Map<String, Long> getCounters() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((key, adder) -> snapshot.put(key, adder.sum()));
+        return snapshot;
+    }
+
+    public Map<String, Histogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * Writes a snapshot of every counter and histogram to the sink.
+     */
+    public void flush() {
+        if (sink != null) {
+            sink.onSnapshot(this);
+        }
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject counterJson = new JSONObject();
+        for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+            counterJson.put(counter.getKey(), (long) counter.getValue());
+        }
+        JSONObject histogramJson = new JSONObject();
+        for (Map.Entry<String, Histogram> entry : getHistograms().entrySet()) {
+            Histogram histogram = entry.getValue();
+            histogramJson.put(entry.getKey(), new JSONObject()
+                    .put("count", histogram.getCount())
+                    .put("sumNs", histogram.getSum())
+                    .put("p50Ns", histogram.getPercentile(0.50))
+                    .put("p99Ns", histogram.getPercentile(0.99))
+                    .put("maxNs", histogram.getMax()));
+        }
+        return new JSONObject().put("counters", counterJson).put("histograms", histogramJson);
+    }
+
+    /**
+     * One line per metric, for the stats panel and CLI output.
+     */
+    public String formatSummary() {
+        StringBuilder sb = new StringBuilder();
+        getHistograms().forEach((key, histogram) -> sb.append(String.format("%-24s n=%-6d avg=%.1fms p50=%.1fms p99=%.1fms max=%.1fms%n",
+                key, histogram.getCount(),
+                histogram.getMean() * NANOS_TO_MILLIS,
+                histogram.getPercentile(0.50) * NANOS_TO_MILLIS,
+                histogram.getPercentile(0.99) * NANOS_TO_MILLIS,
+                histogram.getMax() * NANOS_TO_MILLIS)));
+        getCounters().forEach((key, value) -> sb.append(String.format("%-24s %d%n", key, value)));
+        return sb.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (sink != null) {
+            sink.close();
+        }
+    }
+}
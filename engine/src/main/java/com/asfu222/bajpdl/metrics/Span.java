@@ -0,0 +1,59 @@
+package com.asfu222.bajpdl.metrics;
+
+/**
+ * A timed section of work, started by {@link Metrics#span} or {@link Metrics#timer}. Not thread-safe;
+ * close it on the thread that opened it.
+ */
+public class Span implements AutoCloseable {
+    static final Span NOOP = new Span(null, null, null, false);
+
+    private final MetricsRegistry registry;
+    private final String name;
+    private final String detail;
+    private final boolean traced;
+    private final long startMillis;
+    private final long startNanos;
+    private boolean failed;
+    private boolean closed;
+
+    Span(MetricsRegistry registry, String name, String detail, boolean traced) {
+        this.registry = registry;
+        this.name = name;
+        this.detail = detail;
+        this.traced = traced;
+        this.startMillis = traced ? System.currentTimeMillis() : 0;
+        this.startNanos = registry != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Marks the span as failed; failed spans are recorded under {@code <name>.failed}.
+     */
+    public void fail() {
+        failed = true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDetail() {
+        return detail;
+    }
+
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    @Override
+    public void close() {
+        if (registry == null || closed) {
+            return;
+        }
+        closed = true;
+        registry.finishSpan(this, System.nanoTime() - startNanos, traced);
+    }
+}
@@ -0,0 +1,54 @@
+package com.asfu222.bajpdl.service;
+
+/**
+ * A token bucket shared by every transfer. Each read from the network takes as many tokens as
+ * bytes it read and blocks until the bucket has refilled enough. A rate of 0 disables limiting.
+ */
+public class BandwidthLimiter {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    // Never let the bucket be smaller than a couple of copy-loop reads
+    private static final long MIN_BURST = 64 * 1024;
+
+    private long bytesPerSecond;
+    private long capacity;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public BandwidthLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = Math.max(bytesPerSecond, 0);
+        this.capacity = Math.max(this.bytesPerSecond, MIN_BURST);
+        this.tokens = Math.min(tokens, capacity);
+        notifyAll();
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (bytesPerSecond > 0) {
+            refill();
+            if (tokens >= bytes || tokens >= capacity) {
+                tokens -= bytes;
+                return;
+            }
+            double missing = Math.min(bytes, capacity) - tokens;
+            long waitNanos = (long) (missing * NANOS_PER_SECOND / bytesPerSecond);
+            long waitMillis = Math.max(waitNanos / 1_000_000, 1);
+            wait(waitMillis);
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(capacity, tokens + (double) (now - lastRefill) * bytesPerSecond / NANOS_PER_SECOND);
+        }
+        lastRefill = now;
+    }
+}
@@ -1,7 +1,7 @@
 package com.asfu222.bajpdl.service;
 
-import com.asfu222.bajpdl.util.EscalatedFS;
 import com.asfu222.bajpdl.util.FileUtils;
+import com.asfu222.bajpdl.util.GameFS;
 
 import java.io.IOException;
 import java.nio.file.Path;
@@ -32,7 +32,7 @@ public class CommonCatalogItem {
 
     public boolean verifyIntegrity(Path file) {
         try {
-            return FileUtils.calculateCRC32(file) == crc && EscalatedFS.size(file) == size;
+            return FileUtils.calculateCRC32(file) == crc && GameFS.size(file) == size;
         } catch (IOException e) {
             return false;
         }
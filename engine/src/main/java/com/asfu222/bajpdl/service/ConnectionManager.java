@@ -0,0 +1,152 @@
+package com.asfu222.bajpdl.service;
+
+import com.asfu222.bajpdl.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * The one HTTP client of the app, so every request shares its connection pool and DNS cache.
+ * The pool is sized to the download concurrency, and {@link #prewarm} opens connections to the
+ * mirrors while the catalogs are still being fetched, so the first files do not pay for DNS, TCP
+ * and TLS.
+ */
+public final class ConnectionManager {
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final int READ_TIMEOUT_MILLIS = 20000;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+    // Room beyond the fetch threads for striped ranges, packs and catalog requests
+    private static final int EXTRA_CONNECTIONS = 4;
+    private static final int MAX_PREWARM_PER_HOST = 4;
+
+    private static final Dispatcher dispatcher = new Dispatcher();
+    private static final CachingDns dns = new CachingDns();
+    private static volatile OkHttpClient client = build(5);
+    private static int poolSize = -1; // guarded by ConnectionManager.class
+
+    private ConnectionManager() {
+    }
+
+    public static OkHttpClient client() {
+        return client;
+    }
+
+    /**
+     * Sizes the idle pool and the per-host request limit to {@code concurrency} parallel
+     * downloads. A new pool only replaces the old one when the size changes; calls already
+     * running keep their connections.
+     */
+    public static synchronized void configure(int concurrency) {
+        int connections = Math.max(concurrency, 1) + EXTRA_CONNECTIONS;
+        dispatcher.setMaxRequestsPerHost(connections);
+        dispatcher.setMaxRequests(Math.max(connections * 4, 64));
+        if (connections != poolSize) {
+            client = build(connections);
+        }
+    }
+
+    private static synchronized OkHttpClient build(int connections) {
+        poolSize = connections;
+        return new OkHttpClient.Builder()
+                .connectTimeout(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .readTimeout(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(connections, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .dns(dns)
+                .build();
+    }
+
+    /**
+     * Opens up to {@code connections} connections (at most {@value #MAX_PREWARM_PER_HOST}) to the
+     * host of each URL in the background with HEAD requests. The responses do not matter, only
+     * the pooled connections they leave behind.
+     */
+    public static void prewarm(Collection<String> urls, int connections) {
+        Set<HttpUrl> hosts = new LinkedHashSet<>();
+        for (String url : urls) {
+            HttpUrl parsed = url != null ? HttpUrl.parse(url) : null;
+            if (parsed != null) {
+                hosts.add(parsed.newBuilder().encodedPath("/").query(null).build());
+            }
+        }
+        OkHttpClient current = client;
+        int perHost = Math.max(Math.min(connections, MAX_PREWARM_PER_HOST), 1);
+        for (HttpUrl host : hosts) {
+            Request request = new Request.Builder()
+                    .url(host)
+                    .head()
+                    .addHeader("User-Agent", "BAAssetDownloaderAPP")
+                    .build();
+            for (int i = 0; i < perHost; i++) {
+                Metrics.count("connection.prewarm", host.host(), 1);
+                current.newCall(request).enqueue(new Callback() {
+                    @Override
+                    public void onFailure(Call call, IOException e) {
+                        // The real request will report it
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response) {
+                        response.close();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Remembers lookups for a few minutes, and keeps using an expired answer if a fresh lookup fails.
+     */
+    private static class CachingDns implements Dns {
+        private static final long TTL_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+        private static class Entry {
+            final List<InetAddress> addresses;
+            final long expiresAt;
+
+            Entry(List<InetAddress> addresses, long expiresAt) {
+                this.addresses = addresses;
+                this.expiresAt = expiresAt;
+            }
+        }
+
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            Entry entry = entries.get(hostname);
+            long now = System.nanoTime();
+            if (entry != null && now - entry.expiresAt < 0) {
+                return entry.addresses;
+            }
+            try {
+                List<InetAddress> addresses = Dns.SYSTEM.lookup(hostname);
+                entries.put(hostname, new Entry(addresses, now + TTL_NANOS));
+                return addresses;
+            } catch (UnknownHostException e) {
+                if (entry != null) {
+                    return entry.addresses;
+                }
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,724 @@
+package com.asfu222.bajpdl.service;
+
+import com.asfu222.bajpdl.config.AppConfig;
+import com.asfu222.bajpdl.metrics.Metrics;
+import com.asfu222.bajpdl.metrics.Span;
+import com.asfu222.bajpdl.util.FileUtils;
+import com.asfu222.bajpdl.util.GameFS;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+public class FileDownloader {
+    private static final int ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MILLIS = 5000; // 5 seconds
+
+    // A file moves fetch -> verify -> install, each stage sized to the resource it uses
+    private final Stage fetchStage;
+    private final Stage verifyStage;
+    private final Stage installStage;
+    private final AppConfig appConfig;
+    private static final int CONNECTION_TIMEOUT = 15000; // 15 seconds
+    private static final int READ_TIMEOUT = 15000; // 15 seconds
+
+    private static final Map<String, Set<String>> serverAvailable = new HashMap<>();
+    // Shared by every transfer so the limit applies to the app as a whole
+    private static final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter(0);
+    // Waits out retry delays without holding a stage thread
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "download-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+    // One per fetch thread; direct so channel writes need no extra copy
+    private static final ThreadLocal<ByteBuffer> transferBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE));
+    // Bytes received per mirror since this downloader was created, for live per-mirror rates
+    private final Map<String, LongAdder> mirrorBytes = new ConcurrentHashMap<>();
+    // Decides how much of a striped file each mirror starts with
+    private final MirrorThroughput mirrorThroughput = new MirrorThroughput();
+    // Sends small files from custom mirrors several to a request
+    private final PackBatcher packBatcher;
+    // Fetches entries marked as split part by part, from mirrors that publish their parts
+    private final SplitFetch splitFetch;
+
+    private TransferListener listener = (relPath, success, elapsedNanos) -> {};
+
+    public interface TransferListener {
+        void onFileDownloaded(String relPath, boolean success, long elapsedNanos);
+    }
+
+    public void setTransferListener(TransferListener listener) {
+        this.listener = listener;
+    }
+
+    public FileDownloader(AppConfig appConfig) {
+        this.appConfig = appConfig;
+        this.fetchStage = new Stage("fetch", appConfig.getEffectiveConcurrentDownloads());
+        this.verifyStage = new Stage("verify", appConfig.getEffectiveVerifyThreads());
+        this.installStage = new Stage("install", appConfig.getEffectiveInstallThreads());
+        this.packBatcher = new PackBatcher(fetchStage, retryScheduler, bandwidthLimiter,
+                mirror -> mirrorBytes.computeIfAbsent(mirror, k -> new LongAdder()));
+        this.splitFetch = new SplitFetch(bandwidthLimiter, mirrorThroughput,
+                mirror -> mirrorBytes.computeIfAbsent(mirror, k -> new LongAdder()));
+        bandwidthLimiter.setRate(appConfig.getEffectiveDownloadRate());
+        ConnectionManager.configure(appConfig.getEffectiveConcurrentDownloads());
+    }
+
+    public void updateThreadPool() {
+        applyThroughputMode();
+    }
+
+    /**
+     * Applies the current throughput mode to transfers that are already running.
+     */
+    public void applyThroughputMode() {
+        bandwidthLimiter.setRate(appConfig.getEffectiveDownloadRate());
+        ConnectionManager.configure(appConfig.getEffectiveConcurrentDownloads());
+        fetchStage.resize(appConfig.getEffectiveConcurrentDownloads());
+        verifyStage.resize(appConfig.getEffectiveVerifyThreads());
+        installStage.resize(appConfig.getEffectiveInstallThreads());
+    }
+
+    /**
+     * Runs disk work that follows a download (copying into the game, cleaning up old versions)
+     * on the install stage, so it never holds a network slot.
+     */
+    public Executor getInstallExecutor() {
+        return installStage;
+    }
+
+    /**
+     * @return how many files can usefully be in the pipeline at once: a queued file per fetch
+     * thread on top of the ones being fetched, plus one per verify and install thread
+     */
+    public int getPipelineCapacity() {
+        return fetchStage.getThreads() * 2 + verifyStage.getThreads() + installStage.getThreads();
+    }
+
+    public List<Stage> getStages() {
+        return Arrays.asList(fetchStage, verifyStage, installStage);
+    }
+
+    public CompletableFuture<Path> downloadFile(Path basePath, String relPath,
+                                                Function<Path, Boolean> verifier, boolean replace, BiConsumer<String, Exception> handler, CommonCatalogItem item, LongAdder downloadedSize) {
+        Transfer transfer = new Transfer(basePath, relPath, verifier, replace, handler, item, downloadedSize);
+        verifyStage.execute(transfer::start);
+        return transfer.result;
+    }
+
+    /**
+     * Same as {@link #downloadFile} but always saves to dest, even when downloads otherwise go
+     * straight into the game; for files that must not reach the game directory yet.
+     */
+    public CompletableFuture<Path> downloadFileTo(Path dest, String relPath,
+                                                  Function<Path, Boolean> verifier, boolean replace, BiConsumer<String, Exception> handler, CommonCatalogItem item, LongAdder downloadedSize) {
+        Transfer transfer = new Transfer(dest.getParent(), relPath, verifier, replace, handler, item, downloadedSize);
+        transfer.dest = dest;
+        verifyStage.execute(transfer::start);
+        return transfer.result;
+    }
+
+    /**
+     * One file on its way through the stages. Only one stage works on it at a time, and each
+     * hand-off goes through an executor, so its fields need no locking.
+     */
+    private class Transfer implements PackBatcher.Member {
+        final Path basePath;
+        final String relPath;
+        final String detail;
+        final Function<Path, Boolean> verifier;
+        final boolean replace;
+        final BiConsumer<String, Exception> handler;
+        final CommonCatalogItem item;
+        final LongAdder downloadedSize;
+        final CompletableFuture<Path> result = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+
+        Path dest;
+        List<String[]> sources; // {fileUrl, mirror}
+        int nextSource;
+        boolean striped;
+        boolean packTried;
+        boolean splitTried;
+        int attempt;
+        StringBuilder crcLog;
+
+        Transfer(Path basePath, String relPath, Function<Path, Boolean> verifier, boolean replace,
+                 BiConsumer<String, Exception> handler, CommonCatalogItem item, LongAdder downloadedSize) {
+            this.basePath = basePath;
+            this.relPath = relPath;
+            this.detail = relPath.substring(relPath.lastIndexOf('/') + 1);
+            this.verifier = verifier;
+            this.replace = replace;
+            this.handler = handler;
+            this.item = item;
+            this.downloadedSize = downloadedSize;
+        }
+
+        // Verify stage: keep a valid existing file, otherwise line up the mirrors to try
+        void start() {
+            try {
+                if (dest == null) {
+                    dest = resolveDownloadPath(basePath, relPath, item);
+                }
+                if (reuseExisting(dest, detail, verifier, replace, downloadedSize)) {
+                    succeed();
+                    return;
+                }
+            } catch (IOException e) {
+                retry(e);
+                return;
+            } catch (RuntimeException e) {
+                listener.onFileDownloaded(relPath, false, System.nanoTime() - startNanos);
+                result.completeExceptionally(e);
+                return;
+            }
+            sources = listSources(relPath);
+            nextSource = 0;
+            striped = false;
+            packTried = false;
+            splitTried = false;
+            crcLog = new StringBuilder();
+            fetchStage.execute(this::fetchNext);
+        }
+
+        // Fetch stage: download from the next mirror into the ".part" file
+        void fetchNext() {
+            if (!packTried && item != null && item.size > 0 && item.size <= PackBatcher.MAX_FILE_SIZE) {
+                // Small files from a custom mirror share a request; the batcher calls back either way
+                packTried = true;
+                String mirror = packMirror();
+                if (mirror != null) {
+                    packBatcher.add(mirror, this);
+                    return;
+                }
+            }
+            if (!splitTried && item != null && item.isSplit && item.size > 0) {
+                // Parts are checked against the catalog CRC as they arrive, so a complete file goes straight to install
+                splitTried = true;
+                try {
+                    Path partFile = fetchSplit(sources, dest, downloadedSize, item, detail);
+                    if (partFile != null) {
+                        installStage.execute(() -> install(partFile));
+                        return;
+                    }
+                } catch (IOException e) {
+                    handler.accept("分段下载失败，改为整体下载: " + relPath, e);
+                }
+            }
+            if (!striped && item != null && item.size >= StripedFetch.MIN_SIZE) {
+                // First try all mirrors at once; if that fails or the pieces disagree, go one by one
+                striped = true;
+                List<String[]> mirrors = customSources(sources);
+                if (mirrors.size() > 1) {
+                    try {
+                        Path partFile = fetchStriped(mirrors, dest, downloadedSize, item, detail);
+                        if (partFile != null) {
+                            String[] source = {relPath + " (多源)", "striped"};
+                            verifyStage.execute(() -> verify(source, partFile));
+                            return;
+                        }
+                    } catch (IOException e) {
+                        handler.accept("多源下载失败，改为逐个镜像下载: " + relPath, e);
+                    }
+                }
+            }
+            if (nextSource >= sources.size()) {
+                retry(new IOException("下载失败： " + relPath + "：未通过CRC验证。详情：\n" + crcLog));
+                return;
+            }
+            String[] source = sources.get(nextSource++);
+            Path partFile;
+            try {
+                partFile = fetchToPart(source[0], source[1], dest, downloadedSize, item);
+            } catch (IOException e) {
+                retry(e);
+                return;
+            }
+            verifyStage.execute(() -> verify(source, partFile));
+        }
+
+        String packMirror() {
+            for (String[] source : sources) {
+                if (!source[1].equals("fallback") && packBatcher.supports(source[1])) {
+                    return source[1];
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public String getRelPath() {
+            return relPath;
+        }
+
+        @Override
+        public Path getDest() {
+            return dest;
+        }
+
+        @Override
+        public CommonCatalogItem getItem() {
+            return item;
+        }
+
+        @Override
+        public LongAdder getDownloadedSize() {
+            return downloadedSize;
+        }
+
+        @Override
+        public BiConsumer<String, Exception> getHandler() {
+            return handler;
+        }
+
+        // The pack already checked size and CRC, so it goes straight to install
+        @Override
+        public void packed(Path partFile) {
+            installStage.execute(() -> install(partFile));
+        }
+
+        @Override
+        public void unpacked() {
+            fetchStage.execute(this::fetchNext);
+        }
+
+        // Verify stage: check the ".part" file, or go back for the next mirror
+        void verify(String[] source, Path partFile) {
+            try {
+                if (verifyPart(source[0], source[1], partFile, verifier, downloadedSize, item, crcLog)) {
+                    installStage.execute(() -> install(partFile));
+                } else {
+                    fetchStage.execute(this::fetchNext);
+                }
+            } catch (IOException e) {
+                retry(e);
+            }
+        }
+
+        // Install stage: rename the verified file over its real name
+        void install(Path partFile) {
+            try (Span ignored = Metrics.span("file.install", detail)) {
+                GameFS.move(partFile, dest);
+            } catch (IOException e) {
+                retry(e);
+                return;
+            }
+            succeed();
+        }
+
+        void succeed() {
+            listener.onFileDownloaded(relPath, true, System.nanoTime() - startNanos);
+            result.complete(dest);
+        }
+
+        void retry(Exception e) {
+            handler.accept("Error downloading " + relPath, e);
+            if (++attempt >= ATTEMPTS) {
+                listener.onFileDownloaded(relPath, false, System.nanoTime() - startNanos);
+                result.complete(null);
+                return;
+            }
+            retryScheduler.schedule(() -> verifyStage.execute(this::start), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private Path resolveDownloadPath(Path basePath, String relPath, CommonCatalogItem item) {
+        if (appConfig.shouldDownloadStraightToGame()) {
+            return FileUtils.getInGamePath(relPath, item.crc);
+        }
+        return basePath.resolve(relPath);
+    }
+
+    /**
+     * @return the {fileUrl, mirror} pairs to try in order: mirrors that list relPath, then the fallback server
+     */
+    private List<String[]> listSources(String relPath) {
+        List<String[]> sources = new ArrayList<>();
+        for (String baseUrl : appConfig.getServerUrls()) {
+            Set<String> available = serverAvailable.get(baseUrl);
+            if (available != null && available.contains(relPath)) {
+                sources.add(new String[]{baseUrl + "/" + relPath, baseUrl});
+            }
+        }
+        sources.add(new String[]{appConfig.getFallbackUrl() + "/" + relPath, "fallback"});
+        return sources;
+    }
+
+    /**
+     * @return the custom mirrors among sources. They serve the file the catalog describes, while
+     * the fallback server may have a different version under the same path, so only they can be
+     * mixed within one file.
+     */
+    private static List<String[]> customSources(List<String[]> sources) {
+        List<String[]> mirrors = new ArrayList<>(sources.size());
+        for (String[] source : sources) {
+            if (!source[1].equals("fallback")) {
+                mirrors.add(source);
+            }
+        }
+        return mirrors;
+    }
+
+    public CompletableFuture<Path> downloadAsync(String fileUrl, Path dest, Function<Path, Boolean> verifier, boolean replace, BiConsumer<String, Exception> handler, LongAdder downloadedSize) {
+        return CompletableFuture.supplyAsync(() -> {
+            for (int i = 0; i < ATTEMPTS; i++) {
+                Path result = null;
+                try {
+                    result = downloadSingleFile(fileUrl, "apk", dest, verifier, replace, downloadedSize);
+                } catch (IOException e) {
+                    handler.accept("从" + fileUrl + "下载时报错：" , e);
+                }
+                if (result != null) {
+                    return result;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    handler.accept("从" + fileUrl + "下载时报错：" , e);
+                }
+            }
+            return null;
+        }, fetchStage);
+    }
+
+    /**
+     * Downloads into a ".part" file next to dest and only renames it over dest once it passes the
+     * verifier, so the game never sees a partial or corrupt file under its real name.
+     * Runs every step on the calling thread; catalog files go through the stages instead.
+     *
+     * @param mirror the server fileUrl belongs to, for per-mirror metrics
+     * @return dest, or null if the downloaded file failed verification
+     */
+    private Path downloadSingleFile(String fileUrl, String mirror, Path dest, Function<Path, Boolean> verifier, boolean replace,
+                                    LongAdder downloadedSize) throws IOException {
+        String detail = fileUrl.substring(fileUrl.lastIndexOf('/') + 1);
+        if (reuseExisting(dest, detail, verifier, replace, downloadedSize)) {
+            return dest;
+        }
+        Path partFile = fetchToPart(fileUrl, mirror, dest, downloadedSize, null);
+        if (!verifyPart(fileUrl, mirror, partFile, verifier, downloadedSize, null, null)) {
+            return null;
+        }
+        try (Span ignored = Metrics.span("file.install", detail)) {
+            GameFS.move(partFile, dest);
+        }
+        return dest;
+    }
+
+    /**
+     * @return true if dest already exists, passes the verifier and may be kept; otherwise deletes it
+     */
+    private boolean reuseExisting(Path dest, String detail, Function<Path, Boolean> verifier, boolean replace,
+                                  LongAdder downloadedSize) throws IOException {
+        if (!GameFS.exists(dest)) {
+            return false;
+        }
+        boolean valid;
+        try (Span ignored = Metrics.span("file.verify", detail)) {
+            valid = verifier.apply(dest);
+        }
+        if (valid && !replace) {
+            downloadedSize.add(GameFS.size(dest));
+            Metrics.count("file.skipped", 1);
+            return true; // File exists and is valid; keep it.
+        }
+        GameFS.deleteIfExists(dest); // Delete file if it's invalid or replace is true.
+        return false;
+    }
+
+    /**
+     * @return whether {@link #downloadFile} would keep the copy already at item's destination
+     * instead of fetching it, by the same check
+     */
+    public boolean isUpToDate(Path basePath, String relPath, CommonCatalogItem item, boolean replace) throws IOException {
+        if (replace) {
+            return false;
+        }
+        Path dest = resolveDownloadPath(basePath, relPath, item);
+        return GameFS.exists(dest) && item.verifyIntegrity(dest);
+    }
+
+    /**
+     * Downloads item from all sources at once into the ".part" file next to dest.
+     *
+     * @return the ".part" file, or null if dest cannot take positional writes (root)
+     */
+    private Path fetchStriped(List<String[]> sources, Path dest, LongAdder downloadedSize, CommonCatalogItem item,
+                              String detail) throws IOException {
+        Path partFile = dest.resolveSibling(dest.getFileName() + ".part");
+        GameFS.createDirectories(dest.getParent());
+        GameFS.deleteIfExists(partFile);
+        try (Span ignored = Metrics.span("file.stripe", detail);
+             WritableByteChannel out = GameFS.newChannel(partFile, item.size)) {
+            if (!(out instanceof FileChannel)) {
+                out.close();
+                GameFS.deleteIfExists(partFile);
+                return null;
+            }
+            new StripedFetch(ConnectionManager.client(), bandwidthLimiter, mirrorThroughput,
+                    mirror -> mirrorBytes.computeIfAbsent(mirror, k -> new LongAdder()), downloadedSize,
+                    (FileChannel) out, item.size).run(sources);
+        } catch (IOException e) {
+            GameFS.deleteIfExists(partFile);
+            throw e;
+        }
+        return partFile;
+    }
+
+    /**
+     * Downloads a split item part by part into the ".part" file next to dest.
+     *
+     * @return the ".part" file, or null if no source publishes the item's parts or dest cannot
+     * take positional writes (root)
+     */
+    private Path fetchSplit(List<String[]> sources, Path dest, LongAdder downloadedSize, CommonCatalogItem item,
+                            String detail) throws IOException {
+        Path partFile = dest.resolveSibling(dest.getFileName() + ".part");
+        GameFS.createDirectories(dest.getParent());
+        GameFS.deleteIfExists(partFile);
+        boolean complete;
+        try (Span ignored = Metrics.span("file.split", detail);
+             WritableByteChannel out = GameFS.newChannel(partFile, item.size)) {
+            complete = out instanceof FileChannel && splitFetch.run(sources, (FileChannel) out, item, downloadedSize);
+        } catch (IOException e) {
+            GameFS.deleteIfExists(partFile);
+            throw e;
+        }
+        if (!complete) {
+            GameFS.deleteIfExists(partFile);
+            return null;
+        }
+        return partFile;
+    }
+
+    /**
+     * Downloads fileUrl into the ".part" file next to dest.
+     *
+     * @return the ".part" file
+     */
+    private Path fetchToPart(String fileUrl, String mirror, Path dest, LongAdder downloadedSize,
+                             CommonCatalogItem item) throws IOException {
+        String detail = fileUrl.substring(fileUrl.lastIndexOf('/') + 1);
+        Path partFile = dest.resolveSibling(dest.getFileName() + ".part");
+        Request request = new Request.Builder()
+                .url(fileUrl)
+                .addHeader("User-Agent", "BAAssetDownloaderAPP")
+                .build();
+
+        Metrics.count("mirror.requests", mirror, 1);
+        LongAdder mirrorCounter = mirrorBytes.computeIfAbsent(mirror, k -> new LongAdder());
+        long received = 0;
+        long startNanos = System.nanoTime();
+        Span ttfb = Metrics.span("file.ttfb", detail);
+        try (Response response = ConnectionManager.client().newCall(request).execute()) {
+            ttfb.close();
+            // Ensure the request was successful
+            if (!response.isSuccessful()) {
+                throw new IOException("Failed to download file: " + response.code());
+            }
+
+            // Ensure the destination directories are created
+            GameFS.createDirectories(dest.getParent());
+
+            // Get the input stream from the response body
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("No response body received");
+            }
+
+            // Write the response body to the preallocated temp file
+            GameFS.deleteIfExists(partFile);
+            long expectedSize = item != null ? item.size : 0;
+            try (Span ignored = Metrics.span("file.transfer", detail);
+                 WritableByteChannel out = GameFS.newChannel(partFile, expectedSize)) {
+
+                // Okio copies its segments straight into the direct buffer, which goes to write(2) in large chunks
+                BufferedSource source = body.source();
+                ByteBuffer buffer = transferBuffer.get();
+                buffer.clear();
+                int bytesRead;
+                while ((bytesRead = source.read(buffer)) != -1) {
+                    bandwidthLimiter.acquire(bytesRead);
+                    downloadedSize.add(bytesRead);
+                    mirrorCounter.add(bytesRead);
+                    received += bytesRead;
+                    if (!buffer.hasRemaining()) {
+                        writeFully(buffer, out);
+                    }
+                }
+                writeFully(buffer, out);
+                if (out instanceof FileChannel) {
+                    // Drop whatever preallocation reserved beyond what was actually received
+                    ((FileChannel) out).truncate(received);
+                }
+            }
+            mirrorThroughput.record(mirror, received, System.nanoTime() - startNanos);
+        } catch (IOException e) {
+            ttfb.close();
+            Metrics.count("mirror.errors", mirror, 1);
+            downloadedSize.add(-received);
+            GameFS.deleteIfExists(partFile);
+            throw new IOException("Download failed: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            downloadedSize.add(-received);
+            GameFS.deleteIfExists(partFile);
+            throw new IOException("Download interrupted: " + fileUrl, e);
+        } finally {
+            Metrics.count("mirror.bytes", mirror, received);
+        }
+        return partFile;
+    }
+
+    private static void writeFully(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Checks a freshly downloaded ".part" file. A file that fails is deleted, its bytes are taken
+     * back off downloadedSize and the details go to failureLog.
+     */
+    private boolean verifyPart(String fileUrl, String mirror, Path partFile, Function<Path, Boolean> verifier,
+                               LongAdder downloadedSize, CommonCatalogItem item, StringBuilder failureLog) throws IOException {
+        boolean valid;
+        try (Span ignored = Metrics.span("file.verify", fileUrl.substring(fileUrl.lastIndexOf('/') + 1))) {
+            valid = verifier.apply(partFile);
+        }
+        if (valid) {
+            return true;
+        }
+        Metrics.count("mirror.errors", mirror, 1);
+
+        long receivedSize = GameFS.size(partFile);
+        downloadedSize.add(-receivedSize);
+        if (failureLog != null) {
+            failureLog.append("网址 ").append(fileUrl).append("\n");
+            failureLog.append("预期CRC： ").append(item != null ? item.crc : -1).append("\n");
+            failureLog.append("收到CRC： ").append(FileUtils.calculateCRC32(partFile)).append("\n");
+            failureLog.append("预期大小： ").append(item != null ? item.size : -1).append("\n");
+            failureLog.append("收到大小： ").append(receivedSize).append("\n");
+        }
+        // Delete invalid file
+        GameFS.deleteIfExists(partFile);
+        return false;
+    }
+
+    /**
+     * Starts opening connections to every mirror and the fallback server, so they are ready by
+     * the time the catalogs are parsed and file downloads begin.
+     */
+    public void prewarmConnections() {
+        List<String> urls = new ArrayList<>(appConfig.getServerUrls());
+        urls.add(appConfig.getFallbackUrl());
+        ConnectionManager.prewarm(urls, appConfig.getEffectiveConcurrentDownloads());
+    }
+
+    public CompletableFuture<Void> fetchServerAvailable() {
+        return CompletableFuture.runAsync(() -> {
+            for (String serverUrl : appConfig.getServerUrls()) {
+                serverAvailable.put(serverUrl, new HashSet<>());
+                try (Span ignored = Metrics.span("mirror.index", serverUrl)) {
+                    Request request = new Request.Builder()
+                            .url(serverUrl + "/catalog.json")
+                            .addHeader("User-Agent", "BAAssetDownloaderAPP")
+                            .build();
+                    try (Response response = ConnectionManager.client().newCall(request).execute()) {
+                        // Ensure the request was successful
+                        if (!response.isSuccessful()) {
+                            throw new IOException("Failed to download file: " + response.code());
+                        }
+                        ResponseBody body = response.body();
+                        if (body == null) {
+                            throw new IOException("No response body received");
+                        }
+                        try (InputStream inputStream = new BufferedInputStream(body.byteStream());
+                             BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream))) {
+                            StringBuilder jsonText = new StringBuilder();
+                            String line;
+                            while ((line = reader.readLine()) != null) {
+                                jsonText.append(line);
+                            }
+
+                            JSONArray jsonArray = new JSONArray(jsonText.toString());
+                            Set<String> availablePaths = new HashSet<>();
+                            for (int i = 0; i < jsonArray.length(); i++) {
+                                availablePaths.add(jsonArray.getString(i));
+                            }
+                            serverAvailable.put(serverUrl, availablePaths);
+                        }
+                    }
+                } catch (IOException | JSONException e) {
+                    Metrics.count("mirror.errors", serverUrl, 1);
+                    System.err.println("Error fetching catalog from " + serverUrl + ": " + e.getMessage());
+                }
+            }
+        }, fetchStage);
+    }
+
+    /**
+     * @return a snapshot of the bytes received from each mirror so far
+     */
+    public Map<String, Long> getMirrorBytes() {
+        Map<String, Long> snapshot = new HashMap<>();
+        mirrorBytes.forEach((mirror, bytes) -> snapshot.put(mirror, bytes.sum()));
+        return snapshot;
+    }
+
+    /**
+     * @return the mirror relPath is tried from first, "fallback" if no mirror lists it
+     */
+    public String getFirstMirror(String relPath) {
+        return listSources(relPath).get(0)[1];
+    }
+
+    public Set<String> getAvailableCustomDownloads() {
+        Set<String> available = new HashSet<>();
+        for (Set<String> paths : serverAvailable.values()) {
+            available.addAll(paths);
+        }
+        return available;
+    }
+
+    public void shutdown() {
+        fetchStage.shutdown();
+        verifyStage.shutdown();
+        installStage.shutdown();
+    }
+}
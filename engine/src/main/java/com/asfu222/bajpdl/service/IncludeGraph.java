@@ -0,0 +1,241 @@
+package com.asfu222.bajpdl.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Which table bundles include which, as read from TableCatalog.bytes. Stored as one array of
+ * include targets plus an offset per bundle into it, instead of a list per bundle, since most
+ * bundles include nothing. Includes that name no bundle in the catalog are dropped.
+ */
+public final class IncludeGraph {
+    public static final IncludeGraph EMPTY = new IncludeGraph("", new String[0], Collections.emptyMap(), new int[1], new int[0]);
+
+    private final String prefix;
+    private final String[] paths;
+    // By bundle name, the way includes refer to bundles, so the names read need no prefix
+    private final Map<String, Integer> index;
+    // The includes of bundle i are targets[offsets[i]] until targets[offsets[i + 1]]
+    private final int[] offsets;
+    private final int[] targets;
+
+    private IncludeGraph(String prefix, String[] paths, Map<String, Integer> index, int[] offsets, int[] targets) {
+        this.prefix = prefix;
+        this.paths = paths;
+        this.index = index;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    /**
+     * @return bundles in the catalog, or 0 if none of them includes another
+     */
+    public int size() {
+        return paths.length;
+    }
+
+    public boolean isEmpty() {
+        return targets.length == 0;
+    }
+
+    /**
+     * @return the catalog paths path includes directly
+     */
+    public List<String> getIncludes(String path) {
+        Integer node = node(path);
+        if (node == null) {
+            return Collections.emptyList();
+        }
+        List<String> includes = new ArrayList<>(offsets[node + 1] - offsets[node]);
+        for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+            includes.add(paths[targets[i]]);
+        }
+        return includes;
+    }
+
+    /**
+     * @return the given paths and everything they include, directly or not, each after all of its includes
+     */
+    public List<String> withDependencies(Collection<String> paths) {
+        List<String> ordered = new ArrayList<>();
+        BitSet visited = new BitSet(this.paths.length);
+        for (String path : paths) {
+            Integer node = node(path);
+            if (node == null) {
+                ordered.add(path);
+            } else {
+                visit(node, visited, null, ordered);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Reorders paths so that each comes after the ones it includes, directly or through bundles
+     * that are not in paths. Otherwise the given order is kept as far as possible.
+     */
+    public List<String> order(List<String> paths) {
+        if (isEmpty()) {
+            return paths;
+        }
+        BitSet wanted = new BitSet(this.paths.length);
+        for (String path : paths) {
+            Integer node = node(path);
+            if (node != null) {
+                wanted.set(node);
+            }
+        }
+        List<String> ordered = new ArrayList<>(paths.size());
+        BitSet visited = new BitSet(this.paths.length);
+        for (String path : paths) {
+            Integer node = node(path);
+            if (node == null) {
+                ordered.add(path);
+            } else {
+                visit(node, visited, wanted, ordered);
+            }
+        }
+        return ordered;
+    }
+
+    private Integer node(String path) {
+        return path.startsWith(prefix) ? index.get(path.substring(prefix.length())) : null;
+    }
+
+    /**
+     * Adds node after its includes, skipping nodes outside wanted (all if null). Iterative, since
+     * include chains can be long; a cycle is cut where it closes.
+     */
+    private void visit(int start, BitSet visited, BitSet wanted, List<String> ordered) {
+        if (visited.get(start)) {
+            return;
+        }
+        int[] stack = new int[16];
+        int[] next = new int[16]; // the include to look at next, per stack entry
+        int depth = 0;
+        stack[0] = start;
+        next[0] = offsets[start];
+        visited.set(start);
+        while (depth >= 0) {
+            int node = stack[depth];
+            if (next[depth] < offsets[node + 1]) {
+                int target = targets[next[depth]++];
+                if (!visited.get(target)) {
+                    visited.set(target);
+                    if (++depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                        next = Arrays.copyOf(next, depth * 2);
+                    }
+                    stack[depth] = target;
+                    next[depth] = offsets[target];
+                }
+            } else {
+                if (wanted == null || wanted.get(node)) {
+                    ordered.add(paths[node]);
+                }
+                depth--;
+            }
+        }
+    }
+
+    /**
+     * Collects includes as the catalog is read; they stay names until every bundle is known.
+     */
+    static class Builder {
+        // Sized up front from the catalog's own count, but only so far, in case the count is corrupt
+        private static final int MAX_PRESIZE = 1 << 18;
+
+        private final String prefix;
+        private final List<String> keys;
+        private final List<String> sources;
+        private final List<String> names = new ArrayList<>();
+        private int[] counts;
+
+        /**
+         * @param prefix  what catalog paths put in front of the bundle names includes use
+         * @param bundles how many bundles the catalog says it lists
+         */
+        Builder(String prefix, int bundles) {
+            this.prefix = prefix;
+            int capacity = Math.max(Math.min(bundles, MAX_PRESIZE), 64);
+            this.keys = new ArrayList<>(capacity);
+            this.sources = new ArrayList<>(capacity);
+            this.counts = new int[capacity];
+        }
+
+        /**
+         * Adds a bundle; the includes added next are its own.
+         *
+         * @param key  the bundle's name, as includes refer to it
+         * @param path its catalog path, prefix + key
+         */
+        void add(String key, String path) {
+            if (sources.size() == counts.length) {
+                counts = Arrays.copyOf(counts, counts.length * 2);
+            }
+            keys.add(key);
+            sources.add(path);
+        }
+
+        void include(String name) {
+            names.add(name);
+            counts[sources.size() - 1]++;
+        }
+
+        /**
+         * A bundle listed more than once becomes one node, with the includes of every listing.
+         */
+        IncludeGraph build() {
+            Map<String, Integer> index = new HashMap<>(keys.size() * 2);
+            List<String> paths = new ArrayList<>(keys.size());
+            int[] nodes = new int[keys.size()]; // the node of each listing
+            for (int i = 0; i < keys.size(); i++) {
+                Integer node = index.putIfAbsent(keys.get(i), paths.size());
+                if (node == null) {
+                    nodes[i] = paths.size();
+                    paths.add(sources.get(i));
+                } else {
+                    nodes[i] = node;
+                }
+            }
+            // Resolve the names and count the includes per node, then fill each node's range
+            int[] resolved = new int[names.size()];
+            int[] offsets = new int[paths.size() + 1];
+            int edges = 0;
+            int name = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                for (int j = 0; j < counts[i]; j++, name++) {
+                    Integer target = index.get(names.get(name));
+                    resolved[name] = target != null ? target : -1;
+                    if (target != null) {
+                        offsets[nodes[i] + 1]++;
+                        edges++;
+                    }
+                }
+            }
+            if (edges == 0) {
+                return EMPTY;
+            }
+            for (int node = 0; node < paths.size(); node++) {
+                offsets[node + 1] += offsets[node];
+            }
+            int[] targets = new int[edges];
+            int[] next = Arrays.copyOf(offsets, paths.size());
+            name = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                for (int j = 0; j < counts[i]; j++, name++) {
+                    if (resolved[name] >= 0) {
+                        targets[next[nodes[i]]++] = resolved[name];
+                    }
+                }
+            }
+            return new IncludeGraph(prefix, paths.toArray(new String[0]), index, offsets, targets);
+        }
+    }
+}
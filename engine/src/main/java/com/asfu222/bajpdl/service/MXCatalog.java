@@ -12,20 +12,30 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 public class MXCatalog {
     private final Map<String, CommonCatalogItem> data;
+    private final IncludeGraph includes;
 
     public MXCatalog(Map<String, CommonCatalogItem> data) {
+        this(data, IncludeGraph.EMPTY);
+    }
+
+    public MXCatalog(Map<String, CommonCatalogItem> data, IncludeGraph includes) {
         this.data = data;
+        this.includes = includes;
     }
 
     public static MXCatalog parseMemoryPackerBytes(byte[] bytesData, boolean media) throws IOException {
+        return parseMemoryPackerBytes(bytesData, media, false);
+    }
+
+    /**
+     * @param withIncludes keep which table bundles include which; otherwise the includes are skipped unread
+     */
+    public static MXCatalog parseMemoryPackerBytes(byte[] bytesData, boolean media, boolean withIncludes) throws IOException {
         try (ByteArrayInputStream cursor = new ByteArrayInputStream(bytesData);
              DataInputStream dataInputStream = new DataInputStream(cursor)) {
 
@@ -33,13 +43,14 @@ public class MXCatalog {
 
             dataInputStream.readByte(); // Skip 1 byte
             int dataSize = readI32(dataInputStream);
+            IncludeGraph.Builder includes = withIncludes && !media ? new IncludeGraph.Builder("TableBundles/", dataSize) : null;
 
             for (int i = 0; i < dataSize; i++) {
-                Map.Entry<String, CommonCatalogItem> entry = media ? readMedia(dataInputStream) : readTable(dataInputStream);
+                Map.Entry<String, CommonCatalogItem> entry = media ? readMedia(dataInputStream) : readTable(dataInputStream, includes);
                 data.put(entry.getKey(), entry.getValue());
             }
 
-            return new MXCatalog(data);
+            return new MXCatalog(data, includes != null ? includes.build() : IncludeGraph.EMPTY);
         }
     }
 
@@ -58,7 +69,7 @@ public class MXCatalog {
         return new MXCatalog(data);
     }
 
-    private static Map.Entry<String, CommonCatalogItem> readTable(DataInputStream dataInputStream) throws IOException {
+    private static Map.Entry<String, CommonCatalogItem> readTable(DataInputStream dataInputStream, IncludeGraph.Builder includes) throws IOException {
         readI32(dataInputStream); // Skip 4 bytes
         String key = readString(dataInputStream);
         readI8(dataInputStream); // Skip 1 byte
@@ -70,7 +81,11 @@ public class MXCatalog {
         boolean isChanged = readBool(dataInputStream);
         boolean isPrologue = readBool(dataInputStream);
         boolean isSplitDownload = readBool(dataInputStream);
-        List<String> includes = readIncludes(dataInputStream);
+        String path = "TableBundles/" + key;
+        if (includes != null) {
+            includes.add(key, path);
+        }
+        readIncludes(dataInputStream, includes);
 
         /*
         Map<String, Object> value = new HashMap<>();
@@ -81,9 +96,8 @@ public class MXCatalog {
         value.put("is_changed", isChanged);
         value.put("is_prologue", isPrologue);
         value.put("is_split_download", isSplitDownload);
-        value.put("includes", includes);
          */
-        return new AbstractMap.SimpleEntry<>("TableBundles/" + key, new CommonCatalogItem(name, size, crc, isSplitDownload));
+        return new AbstractMap.SimpleEntry<>(path, new CommonCatalogItem(name, size, crc, isSplitDownload));
     }
 
     private static Map.Entry<String, CommonCatalogItem> readMedia(DataInputStream dataInputStream) throws IOException {
@@ -125,21 +139,36 @@ public class MXCatalog {
         return new String(bytes, StandardCharsets.UTF_8);
     }
 
-    private static List<String> readIncludes(DataInputStream dataInputStream) throws IOException {
+    /**
+     * Reads the include names into includes, or skips them if it is null.
+     */
+    private static void readIncludes(DataInputStream dataInputStream, IncludeGraph.Builder includes) throws IOException {
         int size = readI32(dataInputStream);
         if (size == -1) {
-            return Collections.emptyList();
+            return;
         }
         readI32(dataInputStream); // Skip 4 bytes
-        List<String> includes = new ArrayList<>();
 
         for (int i = 0; i < size; i++) {
-            includes.add(readString(dataInputStream));
+            if (includes != null) {
+                includes.include(readString(dataInputStream));
+            } else {
+                skipString(dataInputStream);
+            }
             if (i != size - 1) {
                 readI32(dataInputStream); // Skip 4 bytes
             }
         }
-        return includes;
+    }
+
+    private static void skipString(DataInputStream dataInputStream) throws IOException {
+        int length = readI32(dataInputStream);
+        if (length < 0) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        if (dataInputStream.skipBytes(length) < length) {
+            throw new EOFException("Unexpected end of file while skipping string of length " + length);
+        }
     }
 
     private static byte readI8(DataInputStream dataInputStream) throws IOException {
@@ -165,4 +194,11 @@ public class MXCatalog {
     public Map<String, CommonCatalogItem> getData() {
         return data;
     }
+
+    /**
+     * @return which table bundles include which; empty unless parsed with includes
+     */
+    public IncludeGraph getIncludes() {
+        return includes;
+    }
 }
\ No newline at end of file
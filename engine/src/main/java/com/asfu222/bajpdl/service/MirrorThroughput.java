@@ -0,0 +1,30 @@
+package com.asfu222.bajpdl.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Smoothed download rate of each mirror, from transfers large enough that latency does not dominate.
+ */
+public class MirrorThroughput {
+    // Shorter transfers mostly measure the time to first byte
+    private static final long MIN_SAMPLE_BYTES = 256 * 1024;
+    private static final double WEIGHT = 0.3;
+
+    private final Map<String, Double> bytesPerSecond = new ConcurrentHashMap<>();
+
+    public void record(String mirror, long bytes, long elapsedNanos) {
+        if (bytes < MIN_SAMPLE_BYTES || elapsedNanos <= 0) {
+            return;
+        }
+        double sample = bytes * 1e9 / elapsedNanos;
+        bytesPerSecond.merge(mirror, sample, (old, latest) -> old + WEIGHT * (latest - old));
+    }
+
+    /**
+     * @return bytes per second, or 0 if nothing was measured yet
+     */
+    public double get(String mirror) {
+        return bytesPerSecond.getOrDefault(mirror, 0.0);
+    }
+}
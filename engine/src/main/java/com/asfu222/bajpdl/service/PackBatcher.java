@@ -0,0 +1,236 @@
+package com.asfu222.bajpdl.service;
+
+import com.asfu222.bajpdl.metrics.Metrics;
+import com.asfu222.bajpdl.metrics.Span;
+import com.asfu222.bajpdl.util.GameFS;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+/**
+ * Collects small files bound for the same mirror and fetches them in one {@link PackFormat} request,
+ * writing each straight to its ".part" file and checking its CRC on the way. Files the pack does
+ * not deliver intact go back to being fetched on their own, as do all files for a mirror that
+ * turns out not to serve packs.
+ */
+class PackBatcher {
+    /** Larger files gain little from sharing a request. */
+    static final long MAX_FILE_SIZE = 256 * 1024;
+    private static final int MAX_FILES = 128;
+    private static final long MAX_BYTES = 8L * 1024 * 1024;
+    // How long a partial batch waits for more files before it is sent anyway
+    private static final long LINGER_MILLIS = 10;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final MediaType PATH_LIST = MediaType.get("text/plain; charset=utf-8");
+
+    interface Member {
+        String getRelPath();
+
+        Path getDest();
+
+        CommonCatalogItem getItem();
+
+        LongAdder getDownloadedSize();
+
+        /** Where the download reports errors that do not fail the file. */
+        BiConsumer<String, Exception> getHandler();
+
+        /** The file arrived intact in partFile. */
+        void packed(Path partFile);
+
+        /** The file has to be fetched on its own. */
+        void unpacked();
+    }
+
+    private static class Batch {
+        final String mirror;
+        final List<Member> members = new ArrayList<>();
+        long bytes;
+
+        Batch(String mirror) {
+            this.mirror = mirror;
+        }
+    }
+
+    private final Executor fetchExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final Function<String, LongAdder> mirrorCounters;
+    private final Map<String, Batch> open = new HashMap<>(); // guarded by this
+    private final Set<String> unsupported = ConcurrentHashMap.newKeySet();
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    PackBatcher(Executor fetchExecutor, ScheduledExecutorService scheduler,
+                BandwidthLimiter bandwidthLimiter, Function<String, LongAdder> mirrorCounters) {
+        this.fetchExecutor = fetchExecutor;
+        this.scheduler = scheduler;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.mirrorCounters = mirrorCounters;
+    }
+
+    /**
+     * @return false once the mirror has answered a pack request with "not found" or similar
+     */
+    boolean supports(String mirror) {
+        return !unsupported.contains(mirror);
+    }
+
+    void add(String mirror, Member member) {
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = open.get(mirror);
+            if (batch == null) {
+                Batch created = new Batch(mirror);
+                open.put(mirror, created);
+                scheduler.schedule(() -> send(created), LINGER_MILLIS, TimeUnit.MILLISECONDS);
+                batch = created;
+            }
+            batch.members.add(member);
+            batch.bytes += member.getItem().size;
+            if (batch.members.size() >= MAX_FILES || batch.bytes >= MAX_BYTES) {
+                open.remove(mirror);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            Batch ready = full;
+            fetchExecutor.execute(() -> fetch(ready));
+        }
+    }
+
+    private void send(Batch batch) {
+        synchronized (this) {
+            if (open.get(batch.mirror) != batch) {
+                return; // Already sent because it filled up
+            }
+            open.remove(batch.mirror);
+        }
+        fetchExecutor.execute(() -> fetch(batch));
+    }
+
+    private void fetch(Batch batch) {
+        Map<String, Member> pending = new HashMap<>();
+        StringBuilder paths = new StringBuilder();
+        for (Member member : batch.members) {
+            pending.put(member.getRelPath(), member);
+            paths.append(member.getRelPath()).append('\n');
+        }
+        Request request = new Request.Builder()
+                .url(batch.mirror + PackFormat.ENDPOINT)
+                .addHeader("User-Agent", "BAAssetDownloaderAPP")
+                .post(RequestBody.create(paths.toString(), PATH_LIST))
+                .build();
+
+        Metrics.count("mirror.requests", batch.mirror, 1);
+        Metrics.count("pack.files", batch.members.size());
+        LongAdder mirrorCounter = mirrorCounters.apply(batch.mirror);
+        long received = 0;
+        try (Span ignored = Metrics.span("file.pack", batch.members.size() + " files");
+             Response response = ConnectionManager.client().newCall(request).execute()) {
+            int code = response.code();
+            if (code == 404 || code == 405 || code == 501) {
+                unsupported.add(batch.mirror);
+                return;
+            }
+            if (!response.isSuccessful()) {
+                throw new IOException("Failed to download pack: " + code);
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("No response body received");
+            }
+            BufferedSource source = body.source();
+            int nameLength;
+            while ((nameLength = source.readInt()) != 0) {
+                String relPath = source.readUtf8(nameLength);
+                long size = source.readLong();
+                if (size < 0) {
+                    throw new IOException("Invalid size in pack for " + relPath + ": " + size);
+                }
+                Member member = pending.get(relPath);
+                if (member == null) {
+                    source.skip(size); // Not asked for, or listed twice
+                    continue;
+                }
+                if (size != member.getItem().size) {
+                    // Only the catalog size was reserved for the file, so it is not written at all
+                    Metrics.count("mirror.errors", batch.mirror, 1);
+                    source.skip(size);
+                    continue;
+                }
+                pending.remove(relPath);
+                Path partFile = member.getDest().resolveSibling(member.getDest().getFileName() + ".part");
+                CRC32 crc = new CRC32();
+                long written = 0;
+                try {
+                    GameFS.createDirectories(partFile.getParent());
+                    try (OutputStream out = GameFS.newOutputStream(partFile, size)) {
+                        byte[] buffer = buffers.get();
+                        while (written < size) {
+                            int len = source.read(buffer, 0, (int) Math.min(buffer.length, size - written));
+                            if (len == -1) {
+                                throw new EOFException("Pack ended inside " + relPath);
+                            }
+                            bandwidthLimiter.acquire(len);
+                            crc.update(buffer, 0, len);
+                            out.write(buffer, 0, len);
+                            written += len;
+                            received += len;
+                            mirrorCounter.add(len);
+                            member.getDownloadedSize().add(len);
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    member.getDownloadedSize().add(-written);
+                    GameFS.deleteIfExists(partFile);
+                    pending.put(relPath, member);
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+                CommonCatalogItem item = member.getItem();
+                if (crc.getValue() == item.crc) {
+                    member.packed(partFile);
+                } else {
+                    Metrics.count("mirror.errors", batch.mirror, 1);
+                    member.getDownloadedSize().add(-written);
+                    GameFS.deleteIfExists(partFile);
+                    pending.put(relPath, member);
+                }
+            }
+        } catch (IOException e) {
+            Metrics.count("mirror.errors", batch.mirror, 1);
+            // The members of a batch belong to one download, which has one handler
+            batch.members.get(0).getHandler().accept("打包下载失败，改为逐个下载: " + batch.mirror, e);
+        } finally {
+            Metrics.count("mirror.bytes", batch.mirror, received);
+            // Whatever the pack did not deliver intact is fetched the usual way
+            for (Member member : pending.values()) {
+                member.unpacked();
+            }
+        }
+    }
+}
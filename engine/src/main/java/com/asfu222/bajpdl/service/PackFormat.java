@@ -0,0 +1,32 @@
+package com.asfu222.bajpdl.service;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The pack a mirror sends back for {@code POST <mirror>/pack}, whose body lists one path per line.
+ * Each file the mirror has is sent as a header (path length as an int, the UTF-8 path, size as a
+ * long) followed by its bytes; paths it does not have are left out. A zero path length ends the pack.
+ * All numbers are big-endian, as {@link DataOutputStream} writes them.
+ */
+public final class PackFormat {
+    public static final String ENDPOINT = "/pack";
+
+    private PackFormat() {
+    }
+
+    /**
+     * Starts an entry; the caller writes exactly {@code size} bytes of content after it.
+     */
+    public static void writeHeader(DataOutputStream out, String path, long size) throws IOException {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(name.length);
+        out.write(name);
+        out.writeLong(size);
+    }
+
+    public static void writeEnd(DataOutputStream out) throws IOException {
+        out.writeInt(0);
+    }
+}
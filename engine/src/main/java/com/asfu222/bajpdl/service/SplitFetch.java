@@ -0,0 +1,321 @@
+package com.asfu222.bajpdl.service;
+
+import com.asfu222.bajpdl.metrics.Metrics;
+import com.asfu222.bajpdl.util.FileUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+/**
+ * Downloads catalog entries marked as split ({@link CommonCatalogItem#isSplit}) part by part.
+ * A mirror that splits a file publishes a manifest next to it, {@code <file>.parts}: a JSON array
+ * of {@code {"name", "size", "crc"}} in file order, names relative to the file's directory and
+ * {@code crc} optional. Parts are fetched several at a time, spread over the mirrors that publish
+ * the same manifest, and written at their offsets; each part's CRC is taken on the way and the
+ * file's CRC is combined from them, so the finished file is checked without reading it back.
+ */
+class SplitFetch {
+    static final String MANIFEST_SUFFIX = ".parts";
+    // Parts in flight per mirror, and for one file at most
+    private static final int PARTS_PER_MIRROR = 2;
+    private static final int MAX_PARALLEL_PARTS = 8;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final AtomicInteger workerIds = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "split-" + workerIds.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final BandwidthLimiter bandwidthLimiter;
+    private final MirrorThroughput throughput;
+    private final Function<String, LongAdder> mirrorCounters;
+    // Mirrors that answered a manifest request with "not found"; they are not asked again
+    private final Set<String> unsupported = ConcurrentHashMap.newKeySet();
+
+    private static class Part {
+        final String name;
+        final long offset;
+        final long size;
+        final long crc; // -1 if the manifest leaves it out
+        long receivedCrc;
+
+        Part(String name, long offset, long size, long crc) {
+            this.name = name;
+            this.offset = offset;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    SplitFetch(BandwidthLimiter bandwidthLimiter, MirrorThroughput throughput, Function<String, LongAdder> mirrorCounters) {
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.throughput = throughput;
+        this.mirrorCounters = mirrorCounters;
+    }
+
+    /**
+     * Fills out with item from the given {fileUrl, mirror} sources.
+     *
+     * @return false if no mirror publishes a manifest for the file, with nothing written
+     * @throws IOException if the only manifests found are invalid, a part could not be fetched from
+     *                     any mirror publishing it, or the file fails its CRC
+     */
+    boolean run(List<String[]> sources, FileChannel out, CommonCatalogItem item, LongAdder downloadedSize) throws IOException {
+        // Parts only come from mirrors that publish the same manifest; the fallback server has the
+        // official file, which an overriding mirror's parts would not add up to
+        List<String[]> usable = new ArrayList<>();
+        List<Part> parts = null;
+        IOException invalid = null;
+        for (String[] source : sources) {
+            if (source[1].equals("fallback") || unsupported.contains(source[1])) {
+                continue;
+            }
+            List<Part> manifest;
+            try {
+                manifest = fetchManifest(source, item);
+            } catch (IOException e) {
+                invalid = e;
+                continue;
+            }
+            if (manifest == null) {
+                continue;
+            }
+            if (parts == null) {
+                parts = manifest;
+            } else if (!sameParts(parts, manifest)) {
+                continue;
+            }
+            usable.add(source);
+        }
+        if (parts == null) {
+            if (invalid != null) {
+                throw invalid;
+            }
+            return false;
+        }
+
+        int parallel = Math.min(parts.size(), Math.min(usable.size() * PARTS_PER_MIRROR, MAX_PARALLEL_PARTS));
+        AtomicInteger next = new AtomicInteger();
+        LongAdder claimed = new LongAdder();
+        List<String[]> mirrors = usable;
+        List<Part> queue = parts;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < parallel; i++) {
+            futures.add(workers.submit(() -> {
+                int index;
+                while ((index = next.getAndIncrement()) < queue.size()) {
+                    fetchPart(mirrors, index, queue.get(index), out, downloadedSize, claimed);
+                }
+                return null;
+            }));
+        }
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                // Stop the other workers from starting parts that no longer matter
+                next.set(queue.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new IOException("分段下载被打断", e);
+                next.set(queue.size());
+            }
+        }
+        if (failure != null) {
+            downloadedSize.add(-claimed.sum());
+            throw failure;
+        }
+
+        long crc = 0;
+        for (Part part : parts) {
+            crc = FileUtils.crc32Combine(crc, part.receivedCrc, part.size);
+        }
+        if (crc != item.crc) {
+            downloadedSize.add(-claimed.sum());
+            throw new IOException("分段下载的文件未通过CRC验证: " + item.name + "，预期 " + item.crc + "，收到 " + crc);
+        }
+        return true;
+    }
+
+    /**
+     * @return the parts in file order, or null if this source has no manifest for the file
+     */
+    private List<Part> fetchManifest(String[] source, CommonCatalogItem item) throws IOException {
+        Request request = new Request.Builder()
+                .url(source[0] + MANIFEST_SUFFIX)
+                .addHeader("User-Agent", "BAAssetDownloaderAPP")
+                .build();
+        Metrics.count("mirror.requests", source[1], 1);
+        String manifest;
+        try (Response response = ConnectionManager.client().newCall(request).execute()) {
+            if (response.code() == 404) {
+                unsupported.add(source[1]);
+                return null;
+            }
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                Metrics.count("mirror.errors", source[1], 1);
+                return null;
+            }
+            manifest = body.string();
+        } catch (IOException e) {
+            Metrics.count("mirror.errors", source[1], 1);
+            return null;
+        }
+
+        List<Part> parts = new ArrayList<>();
+        long offset = 0;
+        try {
+            JSONArray entries = new JSONArray(manifest);
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                long size = entry.getLong("size");
+                if (size <= 0) {
+                    throw new JSONException("part size " + size);
+                }
+                parts.add(new Part(entry.getString("name"), offset, size, entry.optLong("crc", -1)));
+                offset += size;
+            }
+        } catch (JSONException e) {
+            throw new IOException("分段清单无法解析: " + source[0] + MANIFEST_SUFFIX, e);
+        }
+        if (parts.isEmpty() || offset != item.size) {
+            throw new IOException("分段清单与资源目录不符: " + source[0] + MANIFEST_SUFFIX + "，共 " + offset + " 字节，预期 " + item.size);
+        }
+        return parts;
+    }
+
+    private static boolean sameParts(List<Part> parts, List<Part> others) {
+        if (parts.size() != others.size()) {
+            return false;
+        }
+        for (int i = 0; i < parts.size(); i++) {
+            Part part = parts.get(i);
+            Part other = others.get(i);
+            if (!part.name.equals(other.name) || part.size != other.size || part.crc != other.crc) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fetches one part, starting with the mirror whose turn it is and moving on to the others if
+     * it fails or arrives with the wrong CRC. Bytes count towards downloadedSize as they are
+     * written; an attempt that fails takes its bytes back, and a part that arrives adds them to
+     * claimed, which the whole file takes back if it fails.
+     */
+    private void fetchPart(List<String[]> sources, int index, Part part, FileChannel out,
+                           LongAdder downloadedSize, LongAdder claimed) throws IOException {
+        IOException failure = null;
+        for (int i = 0; i < sources.size(); i++) {
+            String[] source = sources.get((index + i) % sources.size());
+            String partUrl = source[0].substring(0, source[0].lastIndexOf('/') + 1) + part.name;
+            long startNanos = System.nanoTime();
+            LongAdder received = new LongAdder();
+            try {
+                long crc = fetchPart(partUrl, source[1], part, out, received, downloadedSize);
+                if (part.crc >= 0 && crc != part.crc) {
+                    throw new IOException("分段未通过CRC验证: " + partUrl + "，预期 " + part.crc + "，收到 " + crc);
+                }
+                part.receivedCrc = crc;
+                throughput.record(source[1], part.size, System.nanoTime() - startNanos);
+                claimed.add(received.sum());
+                return;
+            } catch (IOException e) {
+                downloadedSize.add(-received.sum());
+                Metrics.count("mirror.errors", source[1], 1);
+                failure = e;
+            } catch (InterruptedException e) {
+                downloadedSize.add(-received.sum());
+                Thread.currentThread().interrupt();
+                throw new IOException("分段下载被打断: " + partUrl, e);
+            }
+        }
+        throw new IOException("分段下载失败，所有镜像均已尝试: " + part.name, failure);
+    }
+
+    /**
+     * @return the CRC of what was written
+     */
+    private long fetchPart(String partUrl, String mirror, Part part, FileChannel out, LongAdder received,
+                           LongAdder downloadedSize) throws IOException, InterruptedException {
+        Request request = new Request.Builder()
+                .url(partUrl)
+                .addHeader("User-Agent", "BAAssetDownloaderAPP")
+                .build();
+        Metrics.count("mirror.requests", mirror, 1);
+        LongAdder mirrorCounter = mirrorCounters.apply(mirror);
+        CRC32 crc32 = new CRC32();
+        long written = 0;
+        try (Response response = ConnectionManager.client().newCall(request).execute()) {
+            if (!response.isSuccessful()) {
+                throw new IOException("Failed to download file: " + response.code());
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("No response body received");
+            }
+            BufferedSource in = body.source();
+            ByteBuffer buffer = buffers.get();
+            while (written < part.size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), part.size - written));
+                while (buffer.hasRemaining()) {
+                    int read = in.read(buffer);
+                    if (read == -1) {
+                        break;
+                    }
+                    bandwidthLimiter.acquire(read);
+                    mirrorCounter.add(read);
+                }
+                buffer.flip();
+                if (!buffer.hasRemaining()) {
+                    throw new IOException("镜像提前结束了传输: " + partUrl);
+                }
+                int length = buffer.remaining();
+                crc32.update(buffer);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer, part.offset + written + buffer.position());
+                }
+                written += length;
+                received.add(length);
+                downloadedSize.add(length);
+            }
+            if (!in.exhausted()) {
+                throw new IOException("分段大小与清单不符: " + partUrl);
+            }
+        } finally {
+            Metrics.count("mirror.bytes", mirror, written);
+        }
+        return crc32.getValue();
+    }
+}
@@ -0,0 +1,84 @@
+package com.asfu222.bajpdl.service;
+
+import com.asfu222.bajpdl.metrics.Metrics;
+import com.asfu222.bajpdl.metrics.Span;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stage of the download pipeline: a fixed pool with its own queue, so network, CPU and disk work
+ * can each be sized to the resource it uses without one starving the others.
+ * Records how long tasks waited in the queue ({@code stage.<name>.wait}) and ran ({@code stage.<name>.run}).
+ */
+public class Stage implements Executor {
+    private final String name;
+    private final AtomicInteger threadIds = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile ThreadPoolExecutor pool;
+
+    public Stage(String name, int threads) {
+        this.name = name;
+        this.pool = newPool(Math.max(threads, 1));
+    }
+
+    private ThreadPoolExecutor newPool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, name + "-" + threadIds.incrementAndGet()));
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        long enqueued = System.nanoTime();
+        queued.incrementAndGet();
+        pool.execute(() -> {
+            queued.decrementAndGet();
+            Metrics.recordNanos("stage." + name + ".wait", System.nanoTime() - enqueued);
+            try (Span ignored = Metrics.timer("stage." + name + ".run")) {
+                task.run();
+            }
+        });
+    }
+
+    /**
+     * Changes the number of threads; queued tasks are kept. Restarts the pool if it was shut down.
+     */
+    public synchronized void resize(int threads) {
+        threads = Math.max(threads, 1);
+        if (pool.isShutdown()) {
+            pool = newPool(threads);
+        } else if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getThreads() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * @return tasks waiting for a thread of this stage
+     */
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public int getActive() {
+        return pool.getActiveCount();
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
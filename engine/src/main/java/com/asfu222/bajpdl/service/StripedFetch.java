@@ -0,0 +1,305 @@
+package com.asfu222.bajpdl.service;
+
+import com.asfu222.bajpdl.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSource;
+
+/**
+ * Downloads one file from several mirrors at once with Range requests, writing each piece at its
+ * offset. Mirrors start on ranges sized to their measured throughput; a mirror that finishes takes
+ * over the back half of the largest range still outstanding (all of it if that mirror failed), so
+ * work moves away from a mirror that slows down and the file finishes at their combined speed.
+ * A range left behind by a mirror that failed after the others had finished goes to the mirrors
+ * still working, so the file only fails once every mirror has.
+ */
+class StripedFetch {
+    /** Smaller files are not worth the extra requests. */
+    static final long MIN_SIZE = 16L * 1024 * 1024;
+    // Ranges are never split below this, or the requests would cost more than they save
+    private static final long MIN_RANGE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    // One thread per mirror of a striped file; each blocks on its own connection
+    private static final AtomicInteger workerIds = new AtomicInteger();
+    private static final ExecutorService workers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "stripe-" + workerIds.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private final OkHttpClient client;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final MirrorThroughput throughput;
+    private final Function<String, LongAdder> mirrorCounters;
+    private final LongAdder downloadedSize;
+    private final FileChannel out;
+    private final long size;
+
+    // Guarded by this
+    private final List<Range> ranges = new ArrayList<>();
+    private final LongAdder claimed = new LongAdder();
+
+    private static class Range {
+        long pos;
+        long end; // exclusive; lowered when another mirror takes over the rest
+        boolean abandoned; // its mirror failed, so whoever is free takes all of what is left
+
+        Range(long pos, long end) {
+            this.pos = pos;
+            this.end = end;
+        }
+
+        long remaining() {
+            return end - pos;
+        }
+    }
+
+    StripedFetch(OkHttpClient client, BandwidthLimiter bandwidthLimiter, MirrorThroughput throughput,
+                 Function<String, LongAdder> mirrorCounters, LongAdder downloadedSize, FileChannel out, long size) {
+        this.client = client;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.throughput = throughput;
+        this.mirrorCounters = mirrorCounters;
+        this.downloadedSize = downloadedSize;
+        this.out = out;
+        this.size = size;
+    }
+
+    /**
+     * Fills the file from the given {fileUrl, mirror} sources and returns once every byte is written.
+     *
+     * @throws IOException if every mirror failed before the file was complete
+     */
+    void run(List<String[]> sources) throws IOException {
+        int count = (int) Math.min(sources.size(), Math.max(size / MIN_RANGE, 1));
+        sources = sources.subList(0, count);
+
+        // Unmeasured mirrors are assumed to be average
+        double known = 0;
+        int measured = 0;
+        for (String[] source : sources) {
+            double rate = throughput.get(source[1]);
+            if (rate > 0) {
+                known += rate;
+                measured++;
+            }
+        }
+        double[] weights = new double[count];
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            double rate = throughput.get(sources.get(i)[1]);
+            weights[i] = rate > 0 ? rate : measured > 0 ? known / measured : 1;
+            total += weights[i];
+        }
+
+        List<Range> initial = new ArrayList<>();
+        long pos = 0;
+        for (int i = 0; i < count; i++) {
+            long end = i == count - 1 ? size : Math.min(size, pos + Math.max((long) (size * weights[i] / total), MIN_RANGE));
+            initial.add(new Range(pos, end));
+            pos = end;
+        }
+        synchronized (this) {
+            ranges.addAll(initial);
+        }
+
+        List<String[]> active = new ArrayList<>(sources);
+        List<Range> assigned = initial;
+        IOException failure = null;
+        while (true) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < active.size(); i++) {
+                String[] source = active.get(i);
+                Range range = assigned.get(i);
+                futures.add(workers.submit(() -> {
+                    work(source, range);
+                    return null;
+                }));
+            }
+            List<String[]> surviving = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                    surviving.add(active.get(i));
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    downloadedSize.add(-claimed.sum());
+                    throw new IOException("多源下载被打断", e);
+                }
+            }
+            if (isComplete()) {
+                return;
+            }
+            if (surviving.isEmpty()) {
+                downloadedSize.add(-claimed.sum());
+                throw new IOException("多源下载未完成：所有镜像均已失败", failure);
+            }
+            // A mirror failed after the others had run out of work; the ones still working take its range over
+            active = surviving;
+            assigned = new ArrayList<>();
+            for (int i = 0; i < active.size(); i++) {
+                assigned.add(takeOver());
+            }
+        }
+    }
+
+    private synchronized boolean isComplete() {
+        for (Range range : ranges) {
+            if (range.remaining() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void work(String[] source, Range range) throws IOException {
+        while (range != null) {
+            long startNanos = System.nanoTime();
+            long bytes;
+            try {
+                bytes = fetch(source, range);
+            } catch (IOException | InterruptedException e) {
+                Metrics.count("mirror.errors", source[1], 1);
+                synchronized (this) {
+                    range.abandoned = true;
+                }
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+            throughput.record(source[1], bytes, System.nanoTime() - startNanos);
+            range = takeOver();
+        }
+    }
+
+    /**
+     * @return a new range cut from the largest outstanding one, or null if nothing is worth splitting
+     */
+    private synchronized Range takeOver() {
+        Range largest = null;
+        for (Range range : ranges) {
+            if (range.remaining() > 0 && (largest == null || range.abandoned && !largest.abandoned
+                    || range.abandoned == largest.abandoned && range.remaining() > largest.remaining())) {
+                largest = range;
+            }
+        }
+        if (largest == null) {
+            return null;
+        }
+        Range taken;
+        if (largest.abandoned) {
+            taken = new Range(largest.pos, largest.end);
+            largest.end = largest.pos;
+        } else if (largest.remaining() >= 2 * MIN_RANGE) {
+            long mid = largest.pos + largest.remaining() / 2;
+            taken = new Range(mid, largest.end);
+            largest.end = mid;
+        } else {
+            return null;
+        }
+        ranges.add(taken);
+        return taken;
+    }
+
+    /**
+     * Streams range from one mirror until its (possibly lowered) end.
+     *
+     * @return bytes written
+     */
+    private long fetch(String[] source, Range range) throws IOException, InterruptedException {
+        long from;
+        long to;
+        synchronized (this) {
+            from = range.pos;
+            to = range.end;
+        }
+        if (from >= to) {
+            return 0;
+        }
+        Request request = new Request.Builder()
+                .url(source[0])
+                .addHeader("User-Agent", "BAAssetDownloaderAPP")
+                .addHeader("Range", "bytes=" + from + "-" + (to - 1))
+                .build();
+        Metrics.count("mirror.requests", source[1], 1);
+        LongAdder mirrorCounter = mirrorCounters.apply(source[1]);
+        long written = 0;
+        try (Response response = client.newCall(request).execute()) {
+            if (response.code() != 206) {
+                throw new IOException("镜像不支持分段下载: " + source[1] + " (" + response.code() + ")");
+            }
+            String contentRange = response.header("Content-Range");
+            if (contentRange == null || !contentRange.startsWith("bytes " + from + "-" + (to - 1) + "/")) {
+                throw new IOException("镜像返回的范围与请求不符: " + source[1] + " (" + contentRange + ")");
+            }
+            ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("No response body received");
+            }
+            BufferedSource in = body.source();
+            ByteBuffer buffer = buffers.get();
+            while (true) {
+                long remaining;
+                synchronized (this) {
+                    remaining = range.remaining();
+                }
+                if (remaining <= 0) {
+                    // The rest was taken over; dropping the connection stops the transfer
+                    return written;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                while (buffer.hasRemaining()) {
+                    int read = in.read(buffer);
+                    if (read == -1) {
+                        break;
+                    }
+                    bandwidthLimiter.acquire(read);
+                    mirrorCounter.add(read);
+                }
+                buffer.flip();
+                if (!buffer.hasRemaining()) {
+                    throw new IOException("镜像提前结束了传输: " + source[1]);
+                }
+                long position;
+                synchronized (this) {
+                    // Keep only what is still ours; the range may have been cut while we read
+                    int usable = (int) Math.min(buffer.remaining(), range.remaining());
+                    buffer.limit(usable);
+                    position = range.pos;
+                    range.pos += usable;
+                }
+                int length = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer, position + buffer.position());
+                }
+                claimed.add(length);
+                downloadedSize.add(length);
+                written += length;
+            }
+        } finally {
+            Metrics.count("mirror.bytes", source[1], written);
+        }
+    }
+}
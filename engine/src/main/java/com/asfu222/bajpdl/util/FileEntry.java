@@ -0,0 +1,29 @@
+package com.asfu222.bajpdl.util;
+
+import java.nio.file.Path;
+
+/**
+ * One file or directory from {@link GameFileSystem#list(Path)}, with the attributes the listing already had.
+ */
+public class FileEntry {
+    /** Size or modification time the listing could not provide. */
+    public static final long UNKNOWN = -1;
+
+    public final Path path;
+    public final boolean directory;
+    /** In bytes, or {@link #UNKNOWN}. */
+    public final long size;
+    /** Milliseconds since the epoch, or {@link #UNKNOWN}. */
+    public final long lastModified;
+
+    public FileEntry(Path path, boolean directory, long size, long lastModified) {
+        this.path = path;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public boolean hasSize() {
+        return size != UNKNOWN;
+    }
+}
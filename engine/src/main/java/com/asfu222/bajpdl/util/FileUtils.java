@@ -0,0 +1,212 @@
+package com.asfu222.bajpdl.util;
+
+import net.jpountz.xxhash.XXHash64;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+public abstract class FileUtils {
+    private static final XXHash64 xxHash64 = XXHashFactory.fastestInstance().hash64();
+
+    // Reusable buffer pool
+    private static final ThreadLocal<byte[]> bufferPool = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    public static long calculateCRC32(Path file) throws IOException {
+        return GameFS.crc32(file);
+    }
+
+    /**
+     * CRC32 of everything left in the stream. Does not close it.
+     */
+    public static long calculateCRC32(InputStream is) throws IOException {
+        byte[] buffer = bufferPool.get();
+        CRC32 crc32 = new CRC32();
+
+        int bytesRead;
+        while ((bytesRead = is.read(buffer)) != -1) {
+            crc32.update(buffer, 0, bytesRead);
+        }
+
+        return crc32.getValue();
+    }
+
+    /**
+     * CRC32 of two pieces joined together, from the CRC of each and the length of the second, as
+     * zlib's crc32_combine. Lets a file fetched in parts be checked without reading it again.
+     */
+    public static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        // Operators that append one and two zero bits, squared up to the bits of len2 (in bytes)
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return (crc1 ^ crc2) & 0xffffffffL;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+
+    public static String calculateHash64(String name) {
+        byte[] data = name.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        return Long.toUnsignedString(xxHash64.hash(data, 0, data.length, 0));
+    }
+
+    public static String mapToInGamePath(String urlPath) {
+        String fileName = urlPath.substring(urlPath.lastIndexOf("/") + 1);
+
+        if (urlPath.startsWith("Android/")) {
+            return "AssetBundls/" + fileName;
+        } else if (urlPath.startsWith("MediaResources/")) {
+            if (fileName.startsWith("MediaCatalog")) {
+                return "MediaPatch/Catalog/" + fileName;
+            }
+            return "MediaPatch/" + fileName;
+        }
+
+        return urlPath;
+    }
+
+    private static volatile Path gameRoot;
+
+    public static void setGameRoot(Path value) {
+        gameRoot = value;
+    }
+
+    public static Path getGameRoot() {
+        return gameRoot;
+    }
+
+    private static final Set<String> STATIC_FILES = Set.of("TableCatalog.bytes", "MediaCatalog.bytes", "bundleDownloadInfo.json", "TableCatalog.hash", "MediaCatalog.hash", "bundleDownloadInfo.hash");
+
+    public static Path getInGamePath(String urlPath) {
+        if (gameRoot == null) {
+            throw new IllegalStateException("Game root not set");
+        }
+        return gameRoot.resolve(mapToInGamePath(urlPath));
+    }
+
+    /**
+     * Where a catalog entry lives in the game directory once installed, with its CRC-based name.
+     */
+    public static Path getInGamePath(String urlPath, long crc) {
+        Path inGamePath = getInGamePath(urlPath);
+        return inGamePath.getParent().resolve(renameToInGameFormat(inGamePath.getFileName().toString(), crc));
+    }
+
+    public static String renameToInGameFormat(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        if (!isHashedName(name)) {
+            return name; // Keeps its name, no need to read the file for its CRC
+        }
+        return renameToInGameFormat(name, calculateCRC32(file));
+    }
+
+    public static String renameToInGameFormat(String name, long crc) {
+        if (isHashedName(name)) {
+            return calculateHash64(name) + "_" + crc;
+        }
+        return name;
+    }
+
+    private static boolean isHashedName(String name) {
+        return !name.endsWith(".bundle") && !STATIC_FILES.contains(name);
+    }
+
+    public static Path copyToGame(Path file, String urlPath) throws IOException {
+        return installToGame(file, getInGamePath(urlPath).getParent().resolve(renameToInGameFormat(file)));
+    }
+
+    /**
+     * Same as {@link #copyToGame(Path, String)} but takes the in-game name from the catalog CRC
+     * instead of hashing the file again.
+     */
+    public static Path copyToGame(Path file, String urlPath, long crc) throws IOException {
+        return installToGame(file, getInGamePath(urlPath).getParent().resolve(renameToInGameFormat(file.getFileName().toString(), crc)));
+    }
+
+    private static Path installToGame(Path file, Path newPath) throws IOException {
+        if (file.toAbsolutePath().equals(newPath.toAbsolutePath())) {
+            return newPath;
+        }
+        if (!GameFS.exists(newPath.getParent())) {
+            GameFS.createDirectories(newPath.getParent());
+        }
+        GameFS.install(file, newPath);
+        return newPath;
+    }
+
+    public static void deleteOldGameFiles(Path newestFile, BiConsumer<String, Exception> handler) {
+        String newestFileName = newestFile.getFileName().toString();
+        String namePart = newestFileName.substring(0, newestFileName.lastIndexOf('_'));
+
+        // Other workers rename ".part" files in the same directory while we walk it, and a walk that
+        // trips over a vanished entry aborts; those are never ours to delete, so just walk again.
+        for (int attempt = 1; ; attempt++) {
+            try (var paths = GameFS.walk(newestFile.getParent())) {
+                paths.filter(f -> {
+                    String fileName = f.getFileName().toString();
+                    return fileName.startsWith(namePart) && !fileName.equals(newestFileName) && !fileName.endsWith(".part");
+                }).forEach(f -> {
+                    try {
+                        GameFS.deleteIfExists(f);
+                    } catch (IOException e) {
+                        handler.accept("删除旧文件时报错", e);
+                    }
+                });
+                return;
+            } catch (UncheckedIOException ex) {
+                if (!(ex.getCause() instanceof NoSuchFileException) || attempt >= 3) {
+                    handler.accept("删除旧文件时报错", ex.getCause());
+                    return;
+                }
+            } catch (IOException ex) {
+                handler.accept("删除旧文件时报错", ex);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.asfu222.bajpdl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * Static entry point the engine uses for all file access, forwarding to the installed {@link GameFileSystem}.
+ */
+public abstract class GameFS {
+    private static volatile GameFileSystem fileSystem = new LocalFileSystem();
+
+    public static void setFileSystem(GameFileSystem value) {
+        fileSystem = value;
+    }
+
+    public static GameFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    public static Path createDirectories(Path path) throws IOException {
+        return fileSystem.createDirectories(path);
+    }
+
+    public static OutputStream newOutputStream(Path path) throws IOException {
+        return fileSystem.newOutputStream(path, 0);
+    }
+
+    public static OutputStream newOutputStream(Path path, long preallocateSize) throws IOException {
+        return fileSystem.newOutputStream(path, preallocateSize);
+    }
+
+    public static WritableByteChannel newChannel(Path path, long preallocateSize) throws IOException {
+        return fileSystem.newChannel(path, preallocateSize);
+    }
+
+    public static InputStream newInputStream(Path path) throws IOException {
+        return fileSystem.newInputStream(path);
+    }
+
+    public static byte[] readAllBytes(Path path) throws IOException {
+        return fileSystem.readAllBytes(path);
+    }
+
+    public static void deleteIfExists(Path path) throws IOException {
+        fileSystem.deleteIfExists(path);
+    }
+
+    public static boolean exists(Path path) throws IOException {
+        return fileSystem.exists(path);
+    }
+
+    public static long size(Path path) throws IOException {
+        return fileSystem.size(path);
+    }
+
+    public static void copy(Path source, Path target, CopyOption... options) throws IOException {
+        fileSystem.copy(source, target, options);
+    }
+
+    public static void move(Path source, Path target) throws IOException {
+        fileSystem.move(source, target);
+    }
+
+    public static void install(Path source, Path target) throws IOException {
+        fileSystem.install(source, target);
+    }
+
+    public static Stream<Path> walk(Path start) throws IOException {
+        return fileSystem.walk(start);
+    }
+
+    public static Stream<FileEntry> list(Path start) throws IOException {
+        return fileSystem.list(start);
+    }
+
+    public static long crc32(Path path) throws IOException {
+        return fileSystem.crc32(path);
+    }
+
+    public static long usableSpace(Path path) throws IOException {
+        return fileSystem.usableSpace(path);
+    }
+}
@@ -0,0 +1,71 @@
+package com.asfu222.bajpdl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * The file operations the download engine needs. On device this is backed by root or Shizuku
+ * for the game directory; headless runs use {@link LocalFileSystem}.
+ */
+public interface GameFileSystem {
+    Path createDirectories(Path path) throws IOException;
+
+    /**
+     * Opens the file for writing, truncating it, and reserves {@code preallocateSize} bytes up
+     * front where the filesystem supports it.
+     */
+    OutputStream newOutputStream(Path path, long preallocateSize) throws IOException;
+
+    /**
+     * Same as {@link #newOutputStream(Path, long)} but as a channel, so callers can write large
+     * (direct) buffers without copying them onto the heap first.
+     */
+    WritableByteChannel newChannel(Path path, long preallocateSize) throws IOException;
+
+    InputStream newInputStream(Path path) throws IOException;
+
+    byte[] readAllBytes(Path path) throws IOException;
+
+    void deleteIfExists(Path path) throws IOException;
+
+    boolean exists(Path path) throws IOException;
+
+    long size(Path path) throws IOException;
+
+    void copy(Path source, Path target, CopyOption... options) throws IOException;
+
+    /**
+     * Renames source over target in a single step, so readers of target only ever see the old or the new file.
+     */
+    void move(Path source, Path target) throws IOException;
+
+    /**
+     * Puts source at target with as little I/O as possible: a hardlink, then a rename, and only
+     * a full copy when both fail.
+     */
+    void install(Path source, Path target) throws IOException;
+
+    Stream<Path> walk(Path start) throws IOException;
+
+    /**
+     * Every file and directory under start (start included) with its size and modification time,
+     * read in one pass so callers need not stat each path again.
+     */
+    Stream<FileEntry> list(Path start) throws IOException;
+
+    /**
+     * CRC32 of the whole file. Implementations that can hash next to the data should, so the bytes
+     * never have to be streamed to the caller.
+     */
+    long crc32(Path path) throws IOException;
+
+    /**
+     * Bytes that can still be written to the filesystem holding path, which need not exist yet.
+     */
+    long usableSpace(Path path) throws IOException;
+}
@@ -0,0 +1,158 @@
+package com.asfu222.bajpdl.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.CopyOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Plain java.nio.file access, for hosts where the game directory is directly writable.
+ */
+public class LocalFileSystem implements GameFileSystem {
+    @Override
+    public Path createDirectories(Path path) throws IOException {
+        return Files.createDirectories(path);
+    }
+
+    @Override
+    public OutputStream newOutputStream(Path path, long preallocateSize) throws IOException {
+        checkUsableSpace(path, preallocateSize);
+        return Files.newOutputStream(path);
+    }
+
+    @Override
+    public WritableByteChannel newChannel(Path path, long preallocateSize) throws IOException {
+        checkUsableSpace(path, preallocateSize);
+        return FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private void checkUsableSpace(Path path, long preallocateSize) throws IOException {
+        if (preallocateSize > 0) {
+            // No fallocate on the JVM, but we can still fail before writing anything
+            long usable = usableSpace(path.getParent());
+            if (usable < preallocateSize) {
+                throw new IOException("存储空间不足，需要 " + preallocateSize + " 字节，剩余 " + usable + " 字节");
+            }
+        }
+    }
+
+    @Override
+    public InputStream newInputStream(Path path) throws IOException {
+        return Files.newInputStream(path);
+    }
+
+    @Override
+    public byte[] readAllBytes(Path path) throws IOException {
+        return Files.readAllBytes(path);
+    }
+
+    @Override
+    public void deleteIfExists(Path path) throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Override
+    public boolean exists(Path path) {
+        return Files.exists(path);
+    }
+
+    @Override
+    public long size(Path path) throws IOException {
+        return Files.size(path);
+    }
+
+    @Override
+    public void copy(Path source, Path target, CopyOption... options) throws IOException {
+        Files.copy(source, target, options);
+    }
+
+    @Override
+    public void move(Path source, Path target) throws IOException {
+        Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public void install(Path source, Path target) throws IOException {
+        // Link under a temporary name and rename it over target, so target is never missing
+        Path link = target.resolveSibling(target.getFileName() + ".link");
+        try {
+            Files.deleteIfExists(link);
+            Files.createLink(link, source);
+            move(link, target);
+            return;
+        } catch (IOException | UnsupportedOperationException ignored) {
+        } finally {
+            Files.deleteIfExists(link);
+        }
+        try {
+            move(source, target);
+            return;
+        } catch (IOException ignored) {
+        }
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public Stream<Path> walk(Path start) throws IOException {
+        return Files.walk(start);
+    }
+
+    @Override
+    public Stream<FileEntry> list(Path start) throws IOException {
+        List<FileEntry> entries = new ArrayList<>();
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                entries.add(new FileEntry(dir, true, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    entries.add(new FileEntry(file, false, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (file.equals(start)) {
+                    throw e;
+                }
+                // Renamed or deleted by another worker since the directory was read
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries.stream();
+    }
+
+    @Override
+    public long usableSpace(Path path) throws IOException {
+        // The store of the nearest existing ancestor; a directory that is still to be created lands there too
+        Path existing = path.toAbsolutePath();
+        while (existing.getParent() != null && !Files.exists(existing)) {
+            existing = existing.getParent();
+        }
+        return Files.getFileStore(existing).getUsableSpace();
+    }
+
+    @Override
+    public long crc32(Path path) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            return FileUtils.calculateCRC32(in);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+plugins {
+    application
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+application {
+    mainClass.set("org.openjdk.jmh.Main")
+    applicationDefaultJvmArgs = listOf("-Xmx2g")
+}
+
+dependencies {
+    implementation(project(":engine"))
+    implementation(project(":benchmark"))
+    implementation(libs.jmh.core)
+    annotationProcessor(libs.jmh.generator.annprocess)
+}
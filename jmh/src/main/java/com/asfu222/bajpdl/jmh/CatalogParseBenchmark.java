@@ -0,0 +1,68 @@
+package com.asfu222.bajpdl.jmh;
+
+import com.asfu222.bajpdl.benchmark.SizeDistribution;
+import com.asfu222.bajpdl.benchmark.SyntheticCatalog;
+import com.asfu222.bajpdl.service.MXCatalog;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses generated TableCatalog.bytes, MediaCatalog.bytes and bundleDownloadInfo.json with
+ * {@code entries} entries each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CatalogParseBenchmark {
+    @Param({"10000", "50000", "200000"})
+    public int entries;
+
+    private byte[] tableCatalog;
+    private byte[] mediaCatalog;
+    private byte[] bundleCatalog;
+
+    @Setup
+    public void setup() {
+        SyntheticCatalog catalog = SyntheticCatalog.generate(entries, entries, entries,
+                SizeDistribution.parse(SizeDistribution.DEFAULT), 42, false);
+        tableCatalog = catalog.getStaticFile(SyntheticCatalog.TABLE_CATALOG);
+        mediaCatalog = catalog.getStaticFile(SyntheticCatalog.MEDIA_CATALOG);
+        bundleCatalog = catalog.getStaticFile(SyntheticCatalog.BUNDLE_CATALOG);
+    }
+
+    @Benchmark
+    public MXCatalog parseTableCatalog() throws IOException {
+        return MXCatalog.parseMemoryPackerBytes(tableCatalog, false);
+    }
+
+    @Benchmark
+    public MXCatalog parseTableCatalogWithIncludes() throws IOException {
+        return MXCatalog.parseMemoryPackerBytes(tableCatalog, false, true);
+    }
+
+    @Benchmark
+    public MXCatalog parseMediaCatalog() throws IOException {
+        return MXCatalog.parseMemoryPackerBytes(mediaCatalog, true);
+    }
+
+    @Benchmark
+    public MXCatalog parseBundleDownloadInfo() {
+        return MXCatalog.parseBundleDLInfoJson(bundleCatalog);
+    }
+}
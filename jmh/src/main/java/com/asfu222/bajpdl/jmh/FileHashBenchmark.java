@@ -0,0 +1,91 @@
+package com.asfu222.bajpdl.jmh;
+
+import com.asfu222.bajpdl.benchmark.SizeDistribution;
+import com.asfu222.bajpdl.benchmark.SyntheticCatalog;
+import com.asfu222.bajpdl.util.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CRC32 of files on local disk, as done after every download. {@code size} is either a fixed size
+ * or {@code mix}, which cycles through files drawn from {@link SizeDistribution#DEFAULT}. The files
+ * stay in the page cache, so this measures hashing rather than storage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileHashBenchmark {
+    private static final int MIX_FILES = 256;
+
+    @Param({"4K", "256K", "8M", "mix"})
+    public String size;
+
+    private Path dir;
+    private Path[] files;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("bajpdl-jmh");
+        List<Long> sizes = new ArrayList<>();
+        if (size.equals("mix")) {
+            SizeDistribution distribution = SizeDistribution.parse(SizeDistribution.DEFAULT);
+            SplittableRandom random = new SplittableRandom(42);
+            for (int i = 0; i < MIX_FILES; i++) {
+                sizes.add(distribution.next(random));
+            }
+        } else {
+            sizes.add(SizeDistribution.parseSize(size));
+        }
+        files = new Path[sizes.size()];
+        byte[] buffer = new byte[64 * 1024];
+        for (int i = 0; i < files.length; i++) {
+            files[i] = dir.resolve("file_" + i);
+            try (OutputStream out = Files.newOutputStream(files[i])) {
+                for (long offset = 0; offset < sizes.get(i); offset += buffer.length) {
+                    int len = (int) Math.min(buffer.length, sizes.get(i) - offset);
+                    SyntheticCatalog.fill(i, offset, buffer, len);
+                    out.write(buffer, 0, len);
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public long calculateCRC32() throws IOException {
+        Path file = files[next];
+        next = (next + 1) % files.length;
+        return FileUtils.calculateCRC32(file);
+    }
+}
@@ -0,0 +1,65 @@
+package com.asfu222.bajpdl.jmh;
+
+import com.asfu222.bajpdl.benchmark.SizeDistribution;
+import com.asfu222.bajpdl.benchmark.SyntheticCatalog;
+import com.asfu222.bajpdl.util.FileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-game name mapping for catalog entries: the xxHash64 of the name and the full
+ * {@code <hash>_<crc>} rename, over the same table/bundle/media mix as a real catalog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NamingBenchmark {
+    private static final int NAMES = 1 << 14;
+
+    private String[] names;
+    private long[] crcs;
+    private int next;
+
+    @Setup
+    public void setup() {
+        List<SyntheticCatalog.Entry> entries = SyntheticCatalog.generate(NAMES / 10, NAMES * 3 / 10, NAMES - NAMES / 10 - NAMES * 3 / 10,
+                SizeDistribution.parse(SizeDistribution.DEFAULT), 42, false).getEntries();
+        names = new String[NAMES];
+        crcs = new long[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            // Interleave kinds so branch prediction sees the catalog mix rather than long runs
+            SyntheticCatalog.Entry entry = entries.get((int) ((i * 0x9E3779B1L) & (NAMES - 1)));
+            names[i] = entry.name;
+            crcs[i] = entry.crc;
+        }
+    }
+
+    @Benchmark
+    public String calculateHash64() {
+        int i = next;
+        next = (i + 1) & (NAMES - 1);
+        return FileUtils.calculateHash64(names[i]);
+    }
+
+    @Benchmark
+    public String renameToInGameFormat() {
+        int i = next;
+        next = (i + 1) & (NAMES - 1);
+        return FileUtils.renameToInGameFormat(names[i], crcs[i]);
+    }
+}
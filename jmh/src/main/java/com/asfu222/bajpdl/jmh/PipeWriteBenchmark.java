@@ -0,0 +1,148 @@
+package com.asfu222.bajpdl.jmh;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One 8 MB file written from the 256 KB direct download buffer, the way each write path of
+ * EscalatedFS.newChannel reaches the game directory. {@code path} is
+ * <ul>
+ * <li>{@code root}: the same shell command as EscalatedFS ({@code rm -f; fallocate; cat 1<>}),
+ * with its stdin wrapped in {@link Channels#newChannel}, which makes 8 KB writes;</li>
+ * <li>{@code fd}: Shizuku and local targets, a {@link FileChannel} on the target's own descriptor,
+ * as openWrite hands it over.</li>
+ * </ul>
+ * A channel passing root's pipe whole 256 KB writes instead was measured here too, and was within
+ * noise of the 8 KB writes on time and CPU while allocating a heap copy per file, so it was dropped.
+ * Root runs "sh -c" here instead of "su -c", so process start-up is cheaper than on a device.
+ * Besides the time per file, two counters give the CPU per file in milliseconds: {@code appCpu} of
+ * the writing thread, and {@code childCpu} of the processes it started (cat, rm, fallocate, sh),
+ * from the reaped children's time in /proc/self/stat (10 ms ticks, averaged over the iteration).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipeWriteBenchmark {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final double NANOS_PER_TICK = 1e7; // USER_HZ is 100 on Linux
+
+    @Param({"root", "fd"})
+    public String path;
+
+    private Path file;
+    private ByteBuffer buffer;
+
+    /**
+     * CPU per file so far in this iteration. JMH reads the fields when the iteration ends, so they
+     * hold running averages rather than sums.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Cpu {
+        public double appCpu;
+        public double childCpu;
+
+        private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private long files;
+        private long appStart;
+        private long childStart;
+
+        @Setup(Level.Iteration)
+        public void start() throws IOException {
+            files = 0;
+            appCpu = 0;
+            childCpu = 0;
+            appStart = threads.getCurrentThreadCpuTime();
+            childStart = childTicks();
+        }
+
+        void fileWritten() throws IOException {
+            files++;
+            appCpu = (threads.getCurrentThreadCpuTime() - appStart) / 1e6 / files;
+            childCpu = (childTicks() - childStart) * NANOS_PER_TICK / 1e6 / files;
+        }
+
+        /**
+         * @return cutime + cstime of this process, in ticks
+         */
+        private static long childTicks() throws IOException {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc/self/stat")), StandardCharsets.US_ASCII);
+            // Fields after the command name, which may contain spaces; the first one is field 3
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[13]) + Long.parseLong(fields[14]);
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("pipe-write", ".bin");
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) buffer.position());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public int write(Cpu cpu) throws IOException, InterruptedException {
+        Process process = null;
+        WritableByteChannel out;
+        if (path.equals("fd")) {
+            out = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } else {
+            process = new ProcessBuilder("sh", "-c", "rm -f " + file + "; fallocate -l " + FILE_SIZE + " " + file
+                    + " 2>/dev/null; cat 1<> " + file).start();
+            out = Channels.newChannel(process.getOutputStream());
+        }
+        int written = 0;
+        try {
+            while (written < FILE_SIZE) {
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (process != null && process.waitFor() != 0) {
+            throw new IOException("cat exited with " + process.exitValue());
+        }
+        cpu.fileWritten();
+        return written;
+    }
+}
@@ -21,3 +21,6 @@ dependencyResolutionManagement {
 
 rootProject.name = "BAJPDownloader"
 include(":app")
+include(":engine")
+include(":benchmark")
+include(":jmh")